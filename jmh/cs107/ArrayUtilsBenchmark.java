@@ -0,0 +1,25 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * JMH benchmarks of the conversions between images and channels
+ * @apiNote Run with : gradle jmh
+ * @version 1.4
+ * @since 1.4
+ */
+public class ArrayUtilsBenchmark {
+
+    @Benchmark
+    public byte[][] imageToChannels(ImageState image, Throughput throughput){
+        throughput.count(4L * image.pixels.length, image.pixels.length);
+        return ArrayUtils.imageToChannels(image.data);
+    }
+
+    @Benchmark
+    public int[][] channelsToImage(ImageState image, Throughput throughput){
+        throughput.count(4L * image.pixels.length, image.pixels.length);
+        return ArrayUtils.channelsToImage(image.channels, image.height, image.width);
+    }
+
+}
@@ -0,0 +1,29 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * JMH benchmarks of the reading and writing of PNG files
+ * @apiNote Run with : gradle jmh
+ * @version 1.4
+ * @since 1.4
+ */
+public class HelperBenchmark {
+
+    @Benchmark
+    public Helper.Image readImage(ImageState image, Throughput throughput){
+        throughput.count(image.png.length, image.pixels.length);
+        return Helper.readImage(image.pngFile.toString());
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream writeImage(ImageState image, Throughput throughput){
+        throughput.count(image.png.length, image.pixels.length);
+        var output = new ByteArrayOutputStream(image.png.length);
+        Helper.writeImage(output, image.decoded);
+        return output;
+    }
+
+}
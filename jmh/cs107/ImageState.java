@@ -0,0 +1,144 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Image benchmarked by the JMH benchmarks, with all the representations used by the benchmarked methods.
+ * The synthetic images are generated, the other values are ".qoi" files relative to the root of the project
+ * (the "cs107.root" system property, set by the build)
+ * @version 1.4
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+public class ImageState {
+
+    private static final int SYNTHETIC_WIDTH = 1024;
+    private static final int SYNTHETIC_HEIGHT = 768;
+
+    /**
+     * "flat", "gradient", "noise", "photo" or the path of a ".qoi" file
+     */
+    @Param({"flat", "gradient", "noise", "photo",
+            "res/EPFL.qoi", "res/beach.qoi", "res/cube.qoi", "res/dice.qoi"})
+    public String image;
+
+    Helper.Image decoded;
+    int[][] data;
+    int width;
+    int height;
+    byte[][] channels;
+    int[] pixels;
+    byte[] qoiFile;
+    byte[] qoiData;
+    byte[] png;
+    Path pngFile;
+
+    /**
+     * Prepare the representations of the image, outside the measured code
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var random = new Random(2022);
+        decoded = switch (image) {
+            case "flat" -> Helper.generateImage(flat(), QOISpecification.RGB, QOISpecification.sRGB);
+            case "gradient" -> Helper.generateImage(gradient(), QOISpecification.RGB, QOISpecification.sRGB);
+            case "noise" -> Helper.generateImage(noise(random), QOISpecification.RGBA, QOISpecification.sRGB);
+            case "photo" -> Helper.generateImage(photo(random), QOISpecification.RGB, QOISpecification.sRGB);
+            default -> QOIDecoder.decodeQoiFile(Files.readAllBytes(Path.of(System.getProperty("cs107.root", ".")).resolve(image)));
+        };
+        data = decoded.data();
+        height = data.length;
+        width = data[0].length;
+        channels = ArrayUtils.imageToChannels(data);
+        pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(data[y], 0, pixels, y * width, width);
+        }
+        qoiFile = QOIEncoder.qoiFile(decoded);
+        qoiData = Arrays.copyOfRange(qoiFile, QOISpecification.HEADER_SIZE, qoiFile.length - QOISpecification.QOI_EOF.length);
+        var output = new ByteArrayOutputStream();
+        Helper.writeImage(output, decoded);
+        png = output.toByteArray();
+        pngFile = Files.createTempFile("qoi-benchmark-", ".png");
+        Files.write(pngFile, png);
+    }
+
+    /**
+     * Remove the temporary PNG file
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(pngFile);
+    }
+
+    // ==================================================================================
+    // ================================ SYNTHETIC IMAGES ================================
+    // ==================================================================================
+
+    // One color, encoded with runs only
+    private static int[][] flat(){
+        int[][] data = new int[SYNTHETIC_HEIGHT][SYNTHETIC_WIDTH];
+        for (int[] row : data) {
+            Arrays.fill(row, 0xFF_20_60_A0);
+        }
+        return data;
+    }
+
+    // Smooth horizontal and vertical gradients, encoded with small differences
+    private static int[][] gradient(){
+        int[][] data = new int[SYNTHETIC_HEIGHT][SYNTHETIC_WIDTH];
+        for (int y = 0; y < SYNTHETIC_HEIGHT; y++) {
+            for (int x = 0; x < SYNTHETIC_WIDTH; x++) {
+                int r = x * 255 / SYNTHETIC_WIDTH;
+                int g = y * 255 / SYNTHETIC_HEIGHT;
+                int b = (r + g) / 2;
+                data[y][x] = 0xFF_00_00_00 | r << 16 | g << 8 | b;
+            }
+        }
+        return data;
+    }
+
+    // Random colors and transparency, the worst case of the format
+    private static int[][] noise(Random random){
+        int[][] data = new int[SYNTHETIC_HEIGHT][SYNTHETIC_WIDTH];
+        for (int[] row : data) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = random.nextInt();
+            }
+        }
+        return data;
+    }
+
+    // Gradients with sensor-like noise, flat areas and sharp edges
+    private static int[][] photo(Random random){
+        int[][] data = gradient();
+        for (int y = 0; y < SYNTHETIC_HEIGHT; y++) {
+            for (int x = 0; x < SYNTHETIC_WIDTH; x++) {
+                if ((x / 96 + y / 128) % 3 == 0) {
+                    data[y][x] = 0xFF_F0_F0_E8; // flat area
+                    continue;
+                }
+                int pixel = data[y][x];
+                int noise = random.nextInt(9) - 4;
+                int r = Math.max(0, Math.min(255, (pixel >> 16 & 0xFF) + noise + random.nextInt(3) - 1));
+                int g = Math.max(0, Math.min(255, (pixel >> 8 & 0xFF) + noise));
+                int b = Math.max(0, Math.min(255, (pixel & 0xFF) + noise + random.nextInt(3) - 1));
+                data[y][x] = 0xFF_00_00_00 | r << 16 | g << 8 | b;
+            }
+        }
+        return data;
+    }
+
+}
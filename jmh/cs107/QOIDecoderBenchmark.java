@@ -0,0 +1,48 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of the decoder
+ * @apiNote Run with : gradle jmh
+ * @version 1.4
+ * @since 1.4
+ */
+@State(Scope.Thread)
+public class QOIDecoderBenchmark {
+
+    private int[] decoded;
+
+    /**
+     * Allocate the output of decodeData(byte[], int, int, int[]) once
+     * @param image (ImageState) - Benchmarked image
+     */
+    @Setup(Level.Trial)
+    public void setup(ImageState image){
+        decoded = new int[image.pixels.length];
+    }
+
+    @Benchmark
+    public byte[][] decodeChannels(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        return QOIDecoder.decodeData(image.qoiData, image.width, image.height);
+    }
+
+    @Benchmark
+    public int[] decodePixels(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        QOIDecoder.decodeData(image.qoiData, 0, image.qoiData.length, decoded);
+        return decoded;
+    }
+
+    @Benchmark
+    public Helper.Image decodeQoiFile(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        return QOIDecoder.decodeQoiFile(image.qoiFile);
+    }
+
+}
@@ -0,0 +1,47 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JMH benchmarks of the encoder
+ * @apiNote Run with : gradle jmh
+ * @version 1.4
+ * @since 1.4
+ */
+@State(Scope.Thread)
+public class QOIEncoderBenchmark {
+
+    private byte[] encoded;
+
+    /**
+     * Allocate the output of encodeData(int[], byte[], int) once
+     * @param image (ImageState) - Benchmarked image
+     */
+    @Setup(Level.Trial)
+    public void setup(ImageState image){
+        encoded = new byte[QOIPixelEncoder.maxEncodedSize(image.pixels.length)];
+    }
+
+    @Benchmark
+    public byte[] encodeChannels(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        return QOIEncoder.encodeData(image.channels);
+    }
+
+    @Benchmark
+    public int encodePixels(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        return QOIEncoder.encodeData(image.pixels, encoded, 0);
+    }
+
+    @Benchmark
+    public byte[] qoiFile(ImageState image, Throughput throughput){
+        throughput.count(image.qoiFile.length, image.pixels.length);
+        return QOIEncoder.qoiFile(image.decoded);
+    }
+
+}
@@ -0,0 +1,49 @@
+package cs107;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary counters of the JMH benchmarks, reported by JMH as rates next to ops/s :
+ * <ul>
+ *     <li>bytes : bytes of the "Quite Ok Image" file processed per second for the encoder and the decoder
+ *     (the same definition as the former decoder benchmark), bytes of the PNG file for Helper
+ *     and bytes of the RGBA channels for ArrayUtils,</li>
+ *     <li>pixels : pixels processed per second.</li>
+ * </ul>
+ * The allocation rate is given by the "gc" profiler, enabled by the build.
+ * @version 1.4
+ * @since 1.4
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+
+    /**
+     * Processed bytes, see the description of the class
+     */
+    public long bytes;
+
+    /**
+     * Processed pixels
+     */
+    public long pixels;
+
+    /**
+     * Start each iteration from zero
+     */
+    @Setup(Level.Iteration)
+    public void reset(){
+        bytes = 0;
+        pixels = 0;
+    }
+
+    void count(long bytes, long pixels){
+        this.bytes += bytes;
+        this.pixels += pixels;
+    }
+
+}
@@ -1,5 +1,8 @@
 package cs107;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Utility class to manipulate arrays.
  * @apiNote First Task of the 2022 Mini Project
@@ -169,6 +172,8 @@ public final class ArrayUtils {
      * or one of the inner arrays of input is null.
      */
     public static byte[] concat(byte[]... tabs) {
+        var event = new QOIEvents.Concat();
+        event.begin();
         assert (tabs != null); // checks if arrays within arrays are not null
 
         int count = 0;
@@ -191,6 +196,7 @@ public final class ArrayUtils {
 
             }
         }
+        event.report(null, 0, 0, 0, 0, count);
         return concatArray;
     }
 
@@ -285,6 +291,8 @@ public final class ArrayUtils {
      * or one of the inner arrays of input is null
      */
     public static byte[][] imageToChannels(int[][] input) {
+        var event = new QOIEvents.Flatten();
+        event.begin();
         assert (input.length != 0); //checks that input is not null
         for (int[] ints : input) {
             assert (ints.length != 0); //checks that the arrays inside of input are non-null
@@ -305,6 +313,7 @@ public final class ArrayUtils {
                 count++;
             }
         }
+        event.report(null, input[0].length, input.length, 4, numElements * 4L);
         return channels; //list of all pixels in the file with format RGBA
     }
 
@@ -323,6 +332,8 @@ public final class ArrayUtils {
      * or width is invalid
      */
     public static int[][] channelsToImage(byte[][] input, int height, int width) {
+        var event = new QOIEvents.Unflatten();
+        event.begin();
         assert input.length != 0; //assert input and input[i] is not null
         assert input.length == (height * width); //assert input size is equal to height * width
         for (byte[] bytes : input) {
@@ -348,7 +359,168 @@ public final class ArrayUtils {
                 count++;
             }
         }
+        event.report(null, width, height, 4, input.length * 4L);
         return imageTable;
     }
 
-}
\ No newline at end of file
+    // ==================================================================================
+    // ================================= HASHING METHODS ================================
+    // ==================================================================================
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * Fast 64 bits hash of an array (XXH64 with seed 0), reading 32 bytes per step
+     * @param input (byte[]) - Array to hash
+     * @return (long) - The hash of the content of the array
+     * @throws AssertionError if the input is null
+     * @apiNote Not a cryptographic hash: it detects identical contents, not malicious collisions
+     */
+    public static long hash64(byte[] input) {
+        assert input != null;
+        return hash64(ByteBuffer.wrap(input));
+    }
+
+    /**
+     * Fast 64 bits hash of the content of a buffer (XXH64 with seed 0), reading 32 bytes per step
+     * @param input (ByteBuffer) - Buffer to hash, from its position to its limit (see Helper::map).
+     *              The position of the buffer is not moved
+     * @return (long) - The hash of the content of the buffer
+     * @throws AssertionError if the input is null
+     */
+    public static long hash64(ByteBuffer input) {
+        assert input != null;
+        var buffer = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = buffer.position();
+        int end = buffer.limit();
+        long hash;
+
+        if (end - position >= 32) { // four independent lanes
+            long v1 = PRIME_1 + PRIME_2;
+            long v2 = PRIME_2;
+            long v3 = 0;
+            long v4 = -PRIME_1;
+            do {
+                v1 = round(v1, buffer.getLong(position));
+                v2 = round(v2, buffer.getLong(position + 8));
+                v3 = round(v3, buffer.getLong(position + 16));
+                v4 = round(v4, buffer.getLong(position + 24));
+                position += 32;
+            } while (position <= end - 32);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = PRIME_5;
+        }
+        hash += end - buffer.position();
+
+        for (; position + 8 <= end; position += 8) { // remaining bytes
+            hash ^= round(0, buffer.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (position + 4 <= end) {
+            hash ^= (buffer.getInt(position) & 0xFFFF_FFFFL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+            position += 4;
+        }
+        for (; position < end; position++) {
+            hash ^= (buffer.get(position) & 0xFF) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+
+        return avalanche(hash);
+    }
+
+    /**
+     * Fast 64 bits hash of an array of integers, the same as hash64(byte[]) of their little-endian bytes
+     * @param input (int[]) - Array to hash, for example ARGB packed pixels
+     * @return (long) - The hash of the content of the array
+     * @throws AssertionError if the input is null
+     */
+    public static long hash64(int[] input) {
+        return hash64(input, 0, input == null ? 0 : input.length, 0);
+    }
+
+    /**
+     * Fast 64 bits hash of a part of an array of integers (XXH64 of their little-endian bytes with the given seed).
+     * Parts can be chained by giving the hash of a part as the seed of the next one
+     * @param input (int[]) - Array to hash
+     * @param from (int) - Index of the first hashed integer
+     * @param to (int) - Index after the last hashed integer
+     * @param seed (long) - Seed of the hash
+     * @return (long) - The hash of the integers [from, to[
+     * @throws AssertionError if the input is null or the bounds are invalid
+     */
+    public static long hash64(int[] input, int from, int to, long seed) {
+        assert input != null;
+        assert 0 <= from && from <= to && to <= input.length;
+        int position = from;
+        long hash;
+
+        if (to - position >= 8) { // four independent lanes of two integers
+            long v1 = seed + PRIME_1 + PRIME_2;
+            long v2 = seed + PRIME_2;
+            long v3 = seed;
+            long v4 = seed - PRIME_1;
+            do {
+                v1 = round(v1, pair(input, position));
+                v2 = round(v2, pair(input, position + 2));
+                v3 = round(v3, pair(input, position + 4));
+                v4 = round(v4, pair(input, position + 6));
+                position += 8;
+            } while (position <= to - 8);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = seed + PRIME_5;
+        }
+        hash += 4L * (to - from);
+
+        for (; position + 2 <= to; position += 2) { // remaining integers
+            hash ^= round(0, pair(input, position));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+        if (position < to) {
+            hash ^= (input[position] & 0xFFFF_FFFFL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+        }
+        return avalanche(hash);
+    }
+
+    // Two integers read as one little-endian long
+    private static long pair(int[] input, int position) {
+        return input[position] & 0xFFFF_FFFFL | (long) input[position + 1] << 32;
+    }
+
+    // Mix all the bits of the hash
+    private static long avalanche(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME_1;
+    }
+
+    private static long merge(long hash, long lane) {
+        hash ^= round(0, lane);
+        return hash * PRIME_1 + PRIME_4;
+    }
+
+}
@@ -1,15 +1,116 @@
 package cs107;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 
+import static cs107.QOISpecification.*;
+
 /**
  * Utility class used to simulate the Unix command "diff"
+ * <p>
+ * Two "Quite Ok Image" files can also be compared by their pixels (see diffPixels) : two encodings of
+ * the same image which differ in their bytes have the same pixels.
+ * @apiNote Run with : java cs107.Main diff file_1 file_2 [pixels] [all]
  * @author Hamza REMMAL (hamza.remmal@epfl.ch)
- * @version 1.3
+ * @version 1.4
  * @since 1.0
  */
 public final class Diff {
 
+    /**
+     * Result of the comparison of the pixels of two "Quite Ok Image" files
+     * @param sameHeader (boolean) - true if the width, height, channels and color space are the same
+     * @param x (int) - Column of the first different pixel, -1 if there is none
+     *          (0 with no counts when the dimensions are different)
+     * @param y (int) - Row of the first different pixel, -1 if there is none
+     * @param pixels (long) - Number of different pixels (at most 1 when the comparison stops at the first one)
+     * @param rows (long) - Number of rows with different pixels
+     * @param decodeError (String) - Why the decoding of one of the files stopped before its last row or
+     *                    its EOF (truncated file, bad chunk or bad EOF), null if both files were decoded
+     * @since 1.4
+     */
+    public record PixelReport(boolean sameHeader, int x, int y, long pixels, long rows, String decodeError) {
+
+        /**
+         * @return (boolean) - true if the images have the same size and the same pixels,
+         * and both files were decoded up to their EOF
+         */
+        public boolean samePixels(){
+            return x < 0 && decodeError == null;
+        }
+    }
+
+    // Size of the mapped windows
+    private static final long WINDOW = 1L << 26;
+    // Number of ranges of different bytes printed before the output is cut, the others are only counted
+    private static final int MAX_RANGES = 1000;
+    // Number of bytes of a range printed for each file
+    private static final int SHOWN_BYTES = 8;
+
+    // Runs of different bytes, merged when they touch (even across two windows) and printed by blocks
+    private static final class Differences {
+        private final StringBuilder output = new StringBuilder();
+        private long ranges = 0;
+        private long bytes = 0;
+        // the last range, printed once it cannot grow anymore
+        private long start = -1;
+        private long end = -1;
+        private final StringBuilder shown_1 = new StringBuilder();
+        private final StringBuilder shown_2 = new StringBuilder();
+
+        // Add the different bytes [from, to[ of two windows starting at the given address
+        void add(ByteBuffer w1, ByteBuffer w2, int from, int to, long address){
+            if (address + from != end) {
+                flush();
+                start = address + from;
+            }
+            // only the bytes of the printed ranges are formatted
+            for (int i = from; i < to && ranges < MAX_RANGES && address + i - start < SHOWN_BYTES; i++) {
+                shown_1.append(String.format(" %02x", w1.get(i)));
+                shown_2.append(String.format(" %02x", w2.get(i)));
+            }
+            end = address + to;
+            bytes += to - from;
+        }
+
+        // Print the summary, or the same content message if no bytes differ
+        void show(boolean same_size){
+            flush();
+            System.out.print(output);
+            if (ranges == 0 && same_size)
+                showSameFileMessage();
+            else if (ranges > 0)
+                System.out.printf("== %d different byte(s) in %d range(s)%s%n", bytes, ranges,
+                        ranges > MAX_RANGES ? String.format(", %d range(s) not shown", ranges - MAX_RANGES) : "");
+        }
+
+        // Print the last range
+        private void flush(){
+            if (start < 0)
+                return;
+            if (++ranges <= MAX_RANGES) {
+                if (end - start == 1)
+                    output.append(String.format("[%06X] ~%s ~%s%n", start, shown_1, shown_2));
+                else
+                    output.append(String.format("[%06X-%06X] ~%s%s ~%s%s%n", start, end - 1, shown_1,
+                            end - start > SHOWN_BYTES ? " .." : "", shown_2, end - start > SHOWN_BYTES ? " .." : ""));
+                if (output.length() >= 1 << 16) {
+                    System.out.print(output);
+                    output.setLength(0);
+                }
+            }
+            start = end = -1;
+            shown_1.setLength(0);
+            shown_2.setLength(0);
+        }
+    }
+
     // ============================================================================================
     // ======================================= DIFF API ===========================================
     // ============================================================================================
@@ -25,19 +126,16 @@ public final class Diff {
         assert b1 != null;
         assert b2 != null;
 
-        if(Arrays.equals(b1, b2))
-            showSameFileMessage();
-        else {
-            var size_to_check = b1.length != b2.length ? sizeWarning(b1.length, b2.length) : b1.length;
-            compareAndShow(b1, b2, size_to_check);
-        }
-
+        var size_to_check = b1.length != b2.length ? sizeWarning(b1.length, b2.length) : b1.length;
+        var differences = new Differences();
+        compareAndShow(ByteBuffer.wrap(b1, 0, (int) size_to_check), ByteBuffer.wrap(b2, 0, (int) size_to_check), 0, differences);
+        differences.show(b1.length == b2.length);
         showEnd();
     }
 
     /**
      * Compare the content of 2 files and print in the Terminal the difference
-     * between them
+     * between them. The files are compared through memory-mapped windows, so they can be larger than the memory
      * @param file_1 (String) - Path of the first file
      * @param file_2 (String) - Path of the second file
      * @throws AssertionError if one of the paths is null
@@ -46,10 +144,121 @@ public final class Diff {
         assert file_1 != null;
         assert file_2 != null;
 
-        var b1 = Helper.read(file_1);
-        var b2 = Helper.read(file_2);
-        showHeader(file_1, file_2, b1, b2);
-        diff(b1, b2);
+        try (var c1 = FileChannel.open(Path.of(file_1)); var c2 = FileChannel.open(Path.of(file_2))) {
+            long size_1 = c1.size();
+            long size_2 = c2.size();
+            showHeader(file_1, file_2, size_1, size_2);
+            var size_to_check = size_1 != size_2 ? sizeWarning(size_1, size_2) : size_1;
+            var differences = new Differences();
+            for (long position = 0; position < size_to_check; position += WINDOW) {
+                long length = Math.min(WINDOW, size_to_check - position);
+                compareAndShow(c1.map(FileChannel.MapMode.READ_ONLY, position, length),
+                        c2.map(FileChannel.MapMode.READ_ONLY, position, length), position, differences);
+            }
+            differences.show(size_1 == size_2);
+            showEnd();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to read from : \"%s\" or \"%s\"%n", file_1, file_2);
+        }
+    }
+
+    /**
+     * Compare the pixels of 2 "Quite Ok Image" files and print in the Terminal the first different pixel,
+     * the chunk of each file which produced it, and the number of different pixels.
+     * The files are decoded row by row, without keeping the images in memory
+     * @param file_1 (String) - Path of the first file
+     * @param file_2 (String) - Path of the second file
+     * @param all (boolean) - Count all the different pixels, instead of stopping at the first one
+     * @return (PixelReport) - Result of the comparison
+     * @throws AssertionError if one of the paths is null or one of the files is not a valid "Quite Ok Image" file
+     * @since 1.4
+     */
+    public static PixelReport diffPixels(String file_1, String file_2, boolean all){
+        assert file_1 != null;
+        assert file_2 != null;
+
+        try (var c1 = FileChannel.open(Path.of(file_1)); var c2 = FileChannel.open(Path.of(file_2));
+             var d1 = new QOIStreamDecoder(c1); var d2 = new QOIStreamDecoder(c2)) {
+            showHeader(file_1, file_2, c1.size(), c2.size(), d1, d2);
+            boolean sameHeader = d1.width() == d2.width() && d1.height() == d2.height()
+                    && d1.channels() == d2.channels() && d1.colorSpace() == d2.colorSpace();
+            if (d1.width() != d2.width() || d1.height() != d2.height()) {
+                System.out.println("== WARNING : The two images have different dimensions, the pixels are not compared");
+                showEnd();
+                return new PixelReport(false, 0, 0, 0, 0, null);
+            }
+            if (!sameHeader)
+                System.out.println("== WARNING : The two images have different channels or color spaces");
+
+            int width = d1.width();
+            int x = -1, y = -1;
+            long pixels = 0, rows = 0;
+            int[] row1, row2;
+            String decodeError = null;
+            try {
+                while ((row1 = d1.readRow()) != null && (row2 = d2.readRow()) != null) {
+                    int first = Arrays.mismatch(row1, row2);
+                    if (first < 0)
+                        continue;
+                    if (x < 0) {
+                        x = first;
+                        y = d1.rows() - 1;
+                        showPixel(file_1, file_2, x, y, width, row1[x], row2[x]);
+                    }
+                    rows++;
+                    if (!all) {
+                        pixels = 1;
+                        break;
+                    }
+                    // count the other differences of the row, the equal runs in between are skipped by mismatch
+                    for (int i = first; i < width; i++) {
+                        pixels++;
+                        int next = Arrays.mismatch(row1, i + 1, width, row2, i + 1, width);
+                        if (next < 0)
+                            break;
+                        i += next;
+                    }
+                }
+                // the decoders check the EOF once they reach the last row, both must have reached it
+                if (x < 0 && (d1.rows() != d1.height() || d2.rows() != d2.height()))
+                    decodeError = "one of the files ends before its last row";
+            } catch (RuntimeException | AssertionError e) {
+                // a corrupted file: the differences found so far are still reported
+                decodeError = e.getMessage() == null ? e.toString() : e.getMessage().strip();
+            }
+
+            if (decodeError != null)
+                System.out.printf("== WARNING : The decoding stopped after row %d : %s%n",
+                        Math.min(d1.rows(), d2.rows()), decodeError);
+            if (x >= 0)
+                System.out.printf("== %d different pixel(s) in %d row(s)%s%n", pixels, rows, all ? "" : ", stopped at the first one");
+            else if (decodeError == null)
+                System.out.println("== WARNING : The two inputs have the same pixels");
+            else
+                System.out.println("== WARNING : The pixels after this row are not compared");
+            showEnd();
+            return new PixelReport(sameHeader, x, y, pixels, rows, decodeError);
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\" or \"%s\"%n", file_1, file_2);
+        }
+    }
+
+    /**
+     * Entry point of the diff mode
+     * @param args (String[]) - the two files, optional "pixels" to compare the pixels of "Quite Ok Image" files
+     *             and "all" to count all the different pixels
+     * @since 1.4
+     */
+    public static void main(String[] args){
+        if (args.length < 2) {
+            System.err.println("Usage : diff file_1 file_2 [pixels] [all]");
+            return;
+        }
+        var options = Arrays.asList(args).subList(2, args.length);
+        if (options.contains("pixels"))
+            diffPixels(args[0], args[1], options.contains("all"));
+        else
+            diff(args[0], args[1]);
     }
 
     // ============================================================================================
@@ -58,15 +267,63 @@ public final class Diff {
     // Hide default constructor
     private Diff(){}
 
-    private static void showHeader(String file_1, String file_2, byte[] stream_f1, byte[] stream_f2){
+    private static void showHeader(String file_1, String file_2, long size_1, long size_2){
+        System.out.println("========================================== DIFF ==========================================");
+        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, size_1);
+        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, size_2);
+        System.out.println("==========================================================================================");
+    }
+
+    private static void showHeader(String file_1, String file_2, long size_1, long size_2,
+                                   QOIStreamDecoder d1, QOIStreamDecoder d2){
         System.out.println("========================================== DIFF ==========================================");
-        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, stream_f1.length);
-        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, stream_f2.length);
+        System.out.printf("== File 1 : '%s', %dx%d, %d channels, color space %d, size = %d bytes %n",
+                file_1, d1.width(), d1.height(), d1.channels(), d1.colorSpace(), size_1);
+        System.out.printf("== File 2 : '%s', %dx%d, %d channels, color space %d, size = %d bytes %n",
+                file_2, d2.width(), d2.height(), d2.channels(), d2.colorSpace(), size_2);
         System.out.println("==========================================================================================");
     }
 
-    private static int sizeWarning(int size_1, int size_2){
-        var min = Integer.min(size_1, size_2);
+    // Print a different pixel and the chunk which produced it in each file
+    private static void showPixel(String file_1, String file_2, int x, int y, int width, int pixel_1, int pixel_2){
+        long pixel = (long) y * width + x;
+        System.out.printf("[x=%d, y=%d] ~ %08X ~ %08X%n", x, y, pixel_1, pixel_2);
+        System.out.printf("== File 1 : %s%n", locate(file_1, pixel));
+        System.out.printf("== File 2 : %s%n", locate(file_2, pixel));
+    }
+
+    // Kind and offset of the chunk which produced a pixel. The chunks are only walked through, not decoded
+    private static String locate(String file, long pixel){
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(Path.of(file)), 1 << 16)) {
+            long offset = input.readNBytes(HEADER_SIZE).length;
+            long pixels = 0;
+            int chunk;
+            while ((chunk = input.read()) >= 0) {
+                int size;
+                String op;
+                if (chunk < (QOI_OP_DIFF_TAG & 0xFF)) { size = 1; op = "QOI_OP_INDEX"; }
+                else if (chunk < (QOI_OP_LUMA_TAG & 0xFF)) { size = 1; op = "QOI_OP_DIFF"; }
+                else if (chunk < (QOI_OP_RUN_TAG & 0xFF)) { size = 2; op = "QOI_OP_LUMA"; }
+                else if (chunk < (QOI_OP_RGB_TAG & 0xFF)) { size = 1; op = "QOI_OP_RUN"; }
+                else if (chunk == (QOI_OP_RGB_TAG & 0xFF)) { size = 4; op = "QOI_OP_RGB"; }
+                else { size = 5; op = "QOI_OP_RGBA"; }
+                boolean run = chunk >= (QOI_OP_RUN_TAG & 0xFF) && chunk < (QOI_OP_RGB_TAG & 0xFF);
+                pixels += run ? (chunk & 0b11_11_11) + 1 : 1;
+                if (pixels > pixel)
+                    return String.format("%s at offset [%06X]", op, offset);
+                for (int i = 1; i < size; i++) {
+                    input.read();
+                }
+                offset += size;
+            }
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", file);
+        }
+        return "no chunk";
+    }
+
+    private static long sizeWarning(long size_1, long size_2){
+        var min = Long.min(size_1, size_2);
         System.out.printf("== WARNING : The two input have different sizes, we will only check the %d first bytes%n", min);
         return min;
     }
@@ -75,11 +332,21 @@ public final class Diff {
         System.out.println("== WARNING : The two inputs have the same content");
     }
 
-    private static void compareAndShow(byte[] b1, byte[] b2, int size_to_check){
-        for (var i = 0; i < size_to_check; i++){
-            if (b1[i] != b2[i]){
-                System.out.printf("[%06X] ~ %02x ~ %02x%n", i, b1[i], b2[i]);
+    // Find the runs of different bytes of two windows of the same size, the first byte is at the given address.
+    // The equal bytes are skipped by mismatch, which compares several bytes at once
+    private static void compareAndShow(ByteBuffer w1, ByteBuffer w2, long address, Differences differences){
+        int end = w1.limit();
+        int i = 0;
+        while (i < end) {
+            int next = w1.slice(i, end - i).mismatch(w2.slice(i, end - i));
+            if (next < 0)
+                return;
+            int start = i + next;
+            i = start + 1;
+            while (i < end && w1.get(i) != w2.get(i)) {
+                i++;
             }
+            differences.add(w1, w2, start, i, address);
         }
     }
 
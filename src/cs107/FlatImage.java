@@ -0,0 +1,245 @@
+package cs107;
+
+import java.util.Arrays;
+
+/**
+ * Image stored in one contiguous array of ARGB packed pixels (the layout of Helper.Image::data, row after row).
+ * <p>
+ * A row starts every stride pixels from the offset of the first pixel, so a region of an image is
+ * a view sharing the same array (see region). The hash of the pixels is computed once, on the first
+ * call to hash64, hashCode or equals, and equals compares the hashes before comparing the pixels,
+ * so images can be used as map keys without going through all their pixels at each lookup.
+ * <p>
+ * The pixels must not be modified once the hash is computed.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class FlatImage {
+
+    private final int[] pixels;
+    private final int offset;
+    private final int stride;
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+
+    // the hash is only read after hashed is set, both are written by the first thread computing it
+    private long hash;
+    private volatile boolean hashed = false;
+
+    /**
+     * Create an image backed by an array, without copying it
+     * @param pixels (int[]) - ARGB packed pixels, row after row
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     * @throws AssertionError if the array doesn't contain exactly width * height pixels
+     */
+    public FlatImage(int[] pixels, int width, int height, byte channels, byte colorSpace){
+        this(pixels, 0, width, width, height, channels, colorSpace);
+        assert pixels.length == (long) width * height;
+    }
+
+    /**
+     * Create an image backed by a part of an array, without copying it
+     * @param pixels (int[]) - ARGB packed pixels
+     * @param offset (int) - Index of the first pixel of the first row
+     * @param stride (int) - Distance between the first pixels of two rows
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels
+     * @param colorSpace (byte) - Color space
+     * @throws AssertionError if the image is empty or its rows don't fit in the array
+     */
+    public FlatImage(int[] pixels, int offset, int stride, int width, int height, byte channels, byte colorSpace){
+        assert pixels != null;
+        assert width > 0 && height > 0 && stride >= width && offset >= 0;
+        assert offset + (long) stride * (height - 1) + width <= pixels.length;
+        this.pixels = pixels;
+        this.offset = offset;
+        this.stride = stride;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.colorSpace = colorSpace;
+    }
+
+    // ==================================================================================
+    // =============================== CONVERSION METHODS ===============================
+    // ==================================================================================
+
+    /**
+     * Copy an image into one array
+     * @param image (Helper.Image) - Image to copy
+     * @return (FlatImage) - Image with the same pixels, channels and color space
+     * @throws AssertionError if the image is null or has more pixels than an array can hold
+     */
+    public static FlatImage of(Helper.Image image){
+        assert image != null;
+        int[][] data = image.data();
+        int width = data[0].length;
+        assert (long) width * data.length <= Integer.MAX_VALUE;
+        int[] pixels = new int[width * data.length];
+        for (int y = 0; y < data.length; y++) {
+            System.arraycopy(data[y], 0, pixels, y * width, width);
+        }
+        return new FlatImage(pixels, width, data.length, image.channels(), image.color_space());
+    }
+
+    /**
+     * Copy the image into one array per row
+     * @return (Helper.Image) - Image with the same pixels, channels and color space
+     */
+    public Helper.Image toImage(){
+        int[][] data = new int[height][];
+        for (int y = 0; y < height; y++) {
+            data[y] = Arrays.copyOfRange(pixels, rowStart(y), rowStart(y) + width);
+        }
+        return Helper.generateImage(data, channels, colorSpace);
+    }
+
+    /**
+     * View of a rectangle of the image, sharing the same array
+     * @param x (int) - Column of the top left pixel of the rectangle
+     * @param y (int) - Row of the top left pixel of the rectangle
+     * @param width (int) - Width of the rectangle
+     * @param height (int) - Height of the rectangle
+     * @return (FlatImage) - The rectangle, with the channels and color space of the image
+     * @throws AssertionError if the rectangle is empty or not in the image
+     */
+    public FlatImage region(int x, int y, int width, int height){
+        assert x >= 0 && y >= 0 && width > 0 && height > 0;
+        assert x + width <= this.width && y + height <= this.height;
+        return new FlatImage(pixels, rowStart(y) + x, stride, width, height, channels, colorSpace);
+    }
+
+    // ==================================================================================
+    // ================================= ACCESS METHODS =================================
+    // ==================================================================================
+
+    /**
+     * @return (int[]) - The backing array, shared, see offset and stride
+     */
+    public int[] pixels(){
+        return pixels;
+    }
+
+    /**
+     * @return (int) - Index in pixels of the first pixel of the first row
+     */
+    public int offset(){
+        return offset;
+    }
+
+    /**
+     * @return (int) - Distance in pixels between the first pixels of two rows
+     */
+    public int stride(){
+        return stride;
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @param x (int) - Column of the pixel
+     * @param y (int) - Row of the pixel
+     * @return (int) - ARGB packed pixel
+     */
+    public int get(int x, int y){
+        assert x >= 0 && x < width && y >= 0 && y < height;
+        return pixels[rowStart(y) + x];
+    }
+
+    /**
+     * @param y (int) - Row of the image
+     * @return (int) - Index in pixels of the first pixel of the row
+     */
+    public int rowStart(int y){
+        return offset + y * stride;
+    }
+
+    // ==================================================================================
+    // ================================ EQUALITY METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Hash of the pixels, the hashes of the rows chained with ArrayUtils::hash64 (as QOICompare does).
+     * Computed on the first call only
+     * @return (long) - The hash of the pixels
+     */
+    public long hash64(){
+        if (!hashed) {
+            long value = 0;
+            for (int y = 0; y < height; y++) {
+                value = ArrayUtils.hash64(pixels, rowStart(y), rowStart(y) + width, value);
+            }
+            hash = value;
+            hashed = true;
+        }
+        return hash;
+    }
+
+    @Override
+    public int hashCode(){
+        long value = hash64();
+        return (int) (value ^ value >>> 32);
+    }
+
+    /**
+     * Two images are equal if they have the same size, channels, color space and pixels.
+     * The hashes are compared first, then the pixels row by row with Arrays::equals
+     * @param obj (Object) - Object to compare to
+     * @return (boolean) - true if obj is an equal image
+     */
+    @Override
+    public boolean equals(Object obj){
+        if (this == obj)
+            return true;
+        if (!(obj instanceof FlatImage other))
+            return false;
+        if (width != other.width || height != other.height || channels != other.channels
+                || colorSpace != other.colorSpace || hash64() != other.hash64())
+            return false;
+        for (int y = 0; y < height; y++) {
+            if (!Arrays.equals(pixels, rowStart(y), rowStart(y) + width,
+                    other.pixels, other.rowStart(y), other.rowStart(y) + width))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("FlatImage[%dx%d, channels=%d, color space=%d, hash=%016x]",
+                width, height, channels, colorSpace, hash64());
+    }
+
+}
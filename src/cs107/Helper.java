@@ -1,12 +1,29 @@
 package cs107;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Helper class. This class contains all the methods considered to be useful
@@ -22,6 +39,18 @@ public final class Helper {
 
     private static final String res_folder = "res";
 
+    /**
+     * PNG reader of each thread, reused from one image to the next
+     */
+    private static final ThreadLocal<ImageReader> png_reader =
+            ThreadLocal.withInitial(() -> ImageIO.getImageReadersByFormatName("png").next());
+
+    /**
+     * PNG writer of each thread, reused from one image to the next
+     */
+    private static final ThreadLocal<ImageWriter> png_writer =
+            ThreadLocal.withInitial(() -> ImageIO.getImageWritersByFormatName("png").next());
+
     static {
         var file = new File(res_folder);
         if(file.exists()){
@@ -61,6 +90,23 @@ public final class Helper {
         }
     }
 
+    /**
+     * Thrown when the size of an image, read before its pixels are decoded, is over the given limit
+     */
+    public static final class ImageTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param width (long) - Width of the image
+         * @param height (long) - Height of the image
+         * @param maxPixels (long) - Largest number of pixels accepted
+         */
+        public ImageTooLargeException(long width, long height, long maxPixels){
+            super(String.format("The image is %dx%d, more than %d pixels", width, height, maxPixels));
+        }
+    }
+
     // ==================================================================================
     // ========================== IMAGE MANIPULATION METHODS ============================
     // ==================================================================================
@@ -92,47 +138,242 @@ public final class Helper {
      * @return (Image) - The corresponding Image
      */
     public static Image readImage(String path) {
+        var event = new QOIEvents.ReadImage();
+        event.begin();
         try{
-            var io = ImageIO.read(new File(path));
-            var width  = io.getWidth();
-            var height = io.getHeight();
-            var array = new int[height][width];
-            for(var x = 0; x < height;++x){
-                for(var y = 0 ;y < width; ++y){
-                    array[x][y] = io.getRGB(y, x);
-                }
-            }
-            var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
-            return new Image(array, nbrChannels, (byte) 0);
+            var file = new File(path);
+            var io = decodeImage(file, Long.MAX_VALUE);
+            if (io == null)
+                return fail("The format of \"%s\" is not supported%n", path);
+            var image = toImage(io);
+            event.report(path, io.getWidth(), io.getHeight(), image.channels, file.length());
+            return image;
         }catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
         }
 
     }
 
+    /**
+     * Read and decode an image from a stream. The stream is not closed
+     * @param input (InputStream) - The content of the image, in one of the standard formats (png, jpeg ...)
+     * @return (Image) - The corresponding Image
+     */
+    public static Image readImage(InputStream input) {
+        return readImage(input, Long.MAX_VALUE);
+    }
+
+    /**
+     * Read and decode an image from a stream, if it is not too large. The size of the image is read
+     * from its header, before any pixel is decoded. The stream is not closed
+     * @param input (InputStream) - The content of the image, in one of the standard formats (png, jpeg ...)
+     * @param maxPixels (long) - Largest number of pixels of the image
+     * @return (Image) - The corresponding Image
+     * @throws ImageTooLargeException if the image has more than maxPixels pixels
+     */
+    public static Image readImage(InputStream input, long maxPixels) {
+        var event = new QOIEvents.ReadImage();
+        event.begin();
+        try{
+            var io = decodeImage(input, maxPixels);
+            if (io == null)
+                return fail("The format of the image is not supported%n");
+            var image = toImage(io);
+            event.report(null, io.getWidth(), io.getHeight(), image.channels, 0);
+            return image;
+        }catch (IOException e){
+            return fail("An error occurred while trying to read the image%n");
+        }
+    }
+
+    // Copy the pixels of a decoded image, 4 channels if it has transparency, 3 otherwise
+    private static Image toImage(BufferedImage io) {
+        var array = pixels(io);
+        var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+        return new Image(array, nbrChannels, (byte) 0);
+    }
+
+    /**
+     * Decode an image, PNG images are decoded with the PNG reader of the thread.
+     * The size of the image is checked before its pixels are decoded
+     * @param input (Object) - The image file (File) or stream (InputStream)
+     * @param maxPixels (long) - Largest number of pixels of the image
+     * @return (BufferedImage) - The decoded image, null if the format is not supported
+     * @throws IOException if the image cannot be read
+     * @throws ImageTooLargeException if the image has more than maxPixels pixels
+     */
+    private static BufferedImage decodeImage(Object input, long maxPixels) throws IOException {
+        var stream = ImageIO.createImageInputStream(input);
+        if (stream == null)
+            return null;
+        try(stream){
+            var reader = png_reader.get();
+            boolean shared = reader.getOriginatingProvider().canDecodeInput(stream);
+            if (!shared){
+                // another format, read as ImageIO::read does
+                var readers = ImageIO.getImageReaders(stream);
+                if (!readers.hasNext())
+                    return null;
+                reader = readers.next();
+            }
+            try{
+                reader.setInput(stream, true, true);
+                long width = reader.getWidth(0);
+                long height = reader.getHeight(0);
+                if (width * height > maxPixels)
+                    throw new ImageTooLargeException(width, height, maxPixels);
+                return reader.read(0);
+            } finally {
+                if (shared)
+                    reader.setInput(null);
+                else
+                    reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Extract the ARGB pixels of an image. The common layouts are copied straight from
+     * the raster, the other ones go through the color model (BufferedImage::getRGB)
+     * @param io (BufferedImage) - The image
+     * @return (int[][]) - ARGB stored pixels, the same as BufferedImage::getRGB
+     */
+    private static int[][] pixels(BufferedImage io){
+        var width  = io.getWidth();
+        var height = io.getHeight();
+        var array = new int[height][width];
+        var raster = io.getRaster();
+        var plain = raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+
+        if (plain && (io.getType() == BufferedImage.TYPE_INT_ARGB || io.getType() == BufferedImage.TYPE_INT_RGB)){
+            var buffer = (DataBufferInt) raster.getDataBuffer();
+            var data = buffer.getData();
+            var stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            var opaque = io.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF_00_00_00 : 0;
+            for(var x = 0; x < height; ++x){
+                System.arraycopy(data, buffer.getOffset() + x * stride, array[x], 0, width);
+                if (opaque != 0){
+                    for(var y = 0; y < width; ++y)
+                        array[x][y] |= opaque;
+                }
+            }
+        } else if (plain && (io.getType() == BufferedImage.TYPE_4BYTE_ABGR || io.getType() == BufferedImage.TYPE_3BYTE_BGR)){
+            var buffer = (DataBufferByte) raster.getDataBuffer();
+            var data = buffer.getData();
+            var model = (ComponentSampleModel) raster.getSampleModel();
+            var bands = model.getBandOffsets(); // offsets of R, G, B (and A) in a pixel
+            var step = model.getPixelStride();
+            var alpha = bands.length == 4;
+            for(var x = 0; x < height; ++x){
+                var i = buffer.getOffset() + x * model.getScanlineStride();
+                for(var y = 0; y < width; ++y, i += step){
+                    array[x][y] = (alpha ? (data[i + bands[3]] & 0xFF) << 24 : 0xFF_00_00_00)
+                            | (data[i + bands[0]] & 0xFF) << 16
+                            | (data[i + bands[1]] & 0xFF) << 8
+                            | (data[i + bands[2]] & 0xFF);
+                }
+            }
+        } else if (plain && io.getType() == BufferedImage.TYPE_BYTE_GRAY){
+            // the gray levels go through the color space conversion, computed once per level
+            var lut = new int[256];
+            for(var level = 0; level < 256; ++level)
+                lut[level] = io.getColorModel().getRGB(new byte[]{(byte) level});
+            var buffer = (DataBufferByte) raster.getDataBuffer();
+            var data = buffer.getData();
+            var model = (ComponentSampleModel) raster.getSampleModel();
+            for(var x = 0; x < height; ++x){
+                var i = buffer.getOffset() + x * model.getScanlineStride() + model.getBandOffsets()[0];
+                for(var y = 0; y < width; ++y, i += model.getPixelStride()){
+                    array[x][y] = lut[data[i] & 0xFF];
+                }
+            }
+        } else {
+            for(var x = 0; x < height; ++x){
+                io.getRGB(0, x, width, 1, array[x], 0, width);
+            }
+        }
+        return array;
+    }
+
     /**
      * Write an image as "PNG" in the disk. This function writes to the folder called "res/"
      * @param path (String) - Relative or Absolute path to the image
      * @param image (Image) - Image to store
      */
     public static void writeImage(String path, Image image) {
+        var abs_path = res_folder + File.separator + path;
+        writeImage(Path.of(abs_path), image);
+    }
+
+    /**
+     * Write an image as "PNG" in the disk, at the given path.
+     * An existing file is replaced, not modified : the files hard linked to it keep their content
+     * @param path (Path) - Relative or Absolute path to the image
+     * @param image (Image) - Image to store
+     */
+    public static void writeImage(Path path, Image image) {
+        var temporary = temporary(path);
+        try{
+            try(var output = new BufferedOutputStream(Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))){
+                writeImage(output, image);
+            }
+            replace(temporary, path);
+        }catch (IOException e){
+            discard(temporary);
+            fail("An error occurred while trying to write to : \"%s\"%n", path);
+        }catch (RuntimeException | Error e){
+            discard(temporary);
+            throw e;
+        }
+    }
+
+    /**
+     * Write an image as "PNG" to a stream. The stream is not closed
+     * @param output (OutputStream) - Where to write the image
+     * @param image (Image) - Image to store
+     */
+    public static void writeImage(OutputStream output, Image image) {
+        var event = new QOIEvents.WriteImage();
+        event.begin();
+        var buffer = toBufferedImage(image);
+        var writer = png_writer.get();
+        try(var stream = new MemoryCacheImageOutputStream(output)){
+            writer.setOutput(stream);
+            writer.write(buffer);
+            event.report(null, buffer.getWidth(), buffer.getHeight(), image.channels, stream.getStreamPosition());
+        }catch (IOException e){
+            fail("An error occurred while trying to write the image%n");
+        }finally {
+            writer.setOutput(null);
+        }
+    }
+
+    /**
+     * Copy the pixels of an image in a BufferedImage, writing its raster directly
+     * @param image (Image) - Image to copy
+     * @return (BufferedImage) - TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR image with the same pixels
+     */
+    public static BufferedImage toBufferedImage(Image image) {
         int type = switch (image.channels){
             case 3 -> BufferedImage.TYPE_3BYTE_BGR;
             case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
             default -> fail("Cannot write this image, image.channels() == %d", image.channels);
         };
         var buffer = new BufferedImage(image.data[0].length, image.data.length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data[x][y]);
+        // both types are interleaved without padding: {B, G, R} or {A, B, G, R} for each pixel
+        var data = ((DataBufferByte) buffer.getRaster().getDataBuffer()).getData();
+        var i = 0;
+        for(var row : image.data){
+            for(var pixel : row){
+                if (type == BufferedImage.TYPE_4BYTE_ABGR)
+                    data[i++] = (byte) (pixel >>> 24);
+                data[i++] = (byte) pixel;
+                data[i++] = (byte) (pixel >> 8);
+                data[i++] = (byte) (pixel >> 16);
             }
         }
-        var abs_path = res_folder + File.separator + path;
-        try {
-            ImageIO.write(buffer, "png", new File(abs_path));
-        }catch (IOException e){
-            fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
-        }
+        return buffer;
     }
 
     // ==================================================================================
@@ -145,8 +386,33 @@ public final class Helper {
      * @return (byte[]) - File content as stored in memory
      */
     public static byte[] read(String path) {
+        var event = new QOIEvents.Read();
+        event.begin();
         try(var input = new FileInputStream(path)){
-            return input.readAllBytes();
+            var content = input.readAllBytes();
+            event.report(path, 0, 0, 0, content.length);
+            return content;
+        } catch (IOException e){
+            return fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Map a file stored in the disk in memory, without copying it to the heap.
+     * The content is loaded lazily by the operating system when it is accessed
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (MappedByteBuffer) - Read-only view of the file content
+     */
+    public static MappedByteBuffer map(String path) {
+        var event = new QOIEvents.Read();
+        event.begin();
+        try(var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)){
+            var size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return fail("The file \"%s\" is too big to be mapped (%d bytes)%n", path, size);
+            var content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            event.report(path, 0, 0, 0, size);
+            return content;
         } catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
         }
@@ -159,10 +425,49 @@ public final class Helper {
      */
     public static void write(String path, byte[] content){
         var abs_path = res_folder + File.separator + path;
-        try(var output = new FileOutputStream(abs_path)){
-            output.write(content); // change from for to this to make the program more efficient
+        write(Path.of(abs_path), content);
+    }
+
+    /**
+     * Write a file to the disk, at the given path.
+     * An existing file is replaced, not modified : the files hard linked to it keep their content
+     * @param path (Path) - Relative or Absolute path to the file
+     * @param content (byte[]) - Content of the file.
+     */
+    public static void write(Path path, byte[] content){
+        var event = new QOIEvents.Write();
+        event.begin();
+        var temporary = temporary(path);
+        try{
+            Files.write(temporary, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            replace(temporary, path);
+        }catch (IOException e){
+            discard(temporary);
+            fail("An error occurred while trying to write to : \"%s\"%n", path);
+        }
+        event.report(path.toString(), 0, 0, 0, content.length);
+    }
+
+    // Hidden file next to the destination, so that the move stays on the same file system
+    private static Path temporary(Path path){
+        var name = "." + path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp";
+        return path.toAbsolutePath().resolveSibling(name);
+    }
+
+    // Move the written file over the destination, which is unlinked rather than truncated
+    private static void replace(Path temporary, Path path) throws IOException {
+        try{
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (AtomicMoveNotSupportedException e){
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void discard(Path temporary){
+        try{
+            Files.deleteIfExists(temporary);
         }catch (IOException e){
-            fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
+            // the write already failed, keep its error
         }
     }
 
@@ -1,13 +1,58 @@
 package cs107;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 /**
  * Utility class used to simulate the Unix command "hexdump"
+ * <p>
+ * The lines are formatted in a reused StringBuilder and written by blocks to one stream.
+ * Files are read through memory-mapped windows, so files larger than the memory can be dumped.
+ * @apiNote Run with : java cs107.Main hexdump file [start address] [end address] [output file]
  * @author Hamza REMMAL (hamza.remmal@epfl.ch)
- * @version 1.3
+ * @version 1.4
  * @since 1.0
  */
 public final class Hexdump {
 
+    /**
+     * Result of a dump
+     * @param bytes (long) - Number of dumped bytes
+     * @param nanos (long) - Duration of the dump
+     * @since 1.4
+     */
+    public record Report(long bytes, long nanos) {
+
+        /**
+         * @return (double) - Megabytes dumped per second
+         */
+        public double megabytesPerSecond(){
+            return bytes / 1e6 / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d bytes dumped in %.2f s : %.1f MB/s", bytes, nanos / 1e9, megabytesPerSecond());
+        }
+    }
+
+    private static final String SEPARATOR =
+            "==========================================================================================";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    // Number of bytes per line
+    private static final int LINE = 10;
+    // Size of the mapped windows, a multiple of the line so that no line spans two windows
+    private static final int WINDOW = LINE << 22;
+    // Number of characters formatted before they are written to the stream
+    private static final int BLOCK = 1 << 16;
+
     // ============================================================================================
     // ================================== HEXDUMP API =============================================
     // ============================================================================================
@@ -44,138 +89,118 @@ public final class Hexdump {
         assert binary != null : "(hexdump) You've used a null array, cannot dump the null array";
         assert  0 <= start_address && start_address <= end_address;
         assert end_address < binary.length;
-        var mod_length = (end_address - start_address + 1) % 10;
-        var div_length = (end_address - start_address + 1) / 10;
-        System.out.println("==========================================================================================");
-        for(var i = 0; i < div_length; i++)
-            System.out.print(dump_10bytes(start_address + i * 10, binary));
-        System.out.print(switch (mod_length){
-            case 1 -> dump_1byte(start_address + div_length * 10, binary);
-            case 2 -> dump_2bytes(start_address + div_length * 10, binary);
-            case 3 -> dump_3bytes(start_address + div_length * 10, binary);
-            case 4 -> dump_4bytes(start_address + div_length * 10, binary);
-            case 5 -> dump_5bytes(start_address + div_length * 10, binary);
-            case 6 -> dump_6bytes(start_address + div_length * 10, binary);
-            case 7 -> dump_7bytes(start_address + div_length * 10, binary);
-            case 8 -> dump_8bytes(start_address + div_length * 10, binary);
-            case 9 -> dump_9bytes(start_address + div_length * 10, binary);
-            default -> ""; // Dead code
-        });
-        System.out.println("==========================================================================================");
+        var line = new StringBuilder(BLOCK + 128);
+        line.append(SEPARATOR).append(System.lineSeparator());
+        dump(ByteBuffer.wrap(binary), start_address, start_address, end_address + 1, line, System.out);
+        line.append(SEPARATOR).append(System.lineSeparator());
+        System.out.append(line);
+        System.out.flush();
     }
 
-    // ============================================================================================
-
-    // Hide default constructor
-    private Hexdump(){}
-
-    private static String dump_1byte(int addr, byte[] b){
-        var fmt = "%06X : %02X | %c |%n";
-        return String.format(fmt, addr, b[addr], display_char(b[addr]));
-    }
-    private static String dump_2bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X | %c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr + 1],
-                display_char(b[addr]),
-                display_char(b[addr + 1]));
-    }
-    private static String dump_3bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X | %c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1], b[addr+2],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]));
-    }
-
-    private static String dump_4bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X | %c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]));
+    /**
+     * Dump a range of a file, in the same format as hexdump(byte[], int, int)
+     * @param path (String) - Relative or Absolute path to the file
+     * @param start_address (long) - Address of the first dumped byte
+     * @param end_address (long) - Address of the last dumped byte
+     * @param output (String) - Path of the file where the dump is written, null to print it in the Terminal
+     * @return (Report) - Number of dumped bytes and duration of the dump
+     * @throws AssertionError if the path is null or the addresses are outside the file
+     * @since 1.4
+     */
+    public static Report hexdumpFile(String path, long start_address, long end_address, String output){
+        assert path != null;
+        long start = System.nanoTime();
+        try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            assert 0 <= start_address && start_address <= end_address;
+            assert end_address < channel.size();
+            var out = output == null ? System.out : new PrintStream(new BufferedOutputStream(
+                    Files.newOutputStream(Path.of(output)), BLOCK), false, StandardCharsets.UTF_8);
+            try {
+                var line = new StringBuilder(BLOCK + 128);
+                line.append(SEPARATOR).append(System.lineSeparator());
+                for (long address = start_address; address <= end_address; address += WINDOW) {
+                    int length = (int) Math.min(WINDOW, end_address + 1 - address);
+                    var window = channel.map(FileChannel.MapMode.READ_ONLY, address, length);
+                    dump(window, address, 0, length, line, out);
+                }
+                line.append(SEPARATOR).append(System.lineSeparator());
+                out.append(line);
+                out.flush();
+            } finally {
+                if (out != System.out)
+                    out.close();
+            }
+            if (out.checkError())
+                Helper.fail("An error occurred while trying to write to : \"%s\"%n", output == null ? "stdout" : output);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to dump : \"%s\"%n", path);
+        }
+        return new Report(end_address - start_address + 1, System.nanoTime() - start);
     }
 
-    private static String dump_5bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X | %c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]));
+    /**
+     * Entry point of the hexdump mode, the report is printed on the error stream
+     * @param args (String[]) - file, optional start address, end address (decimal or "0x" hexadecimal)
+     *             and output file
+     * @since 1.4
+     */
+    public static void main(String[] args){
+        if (args.length < 1) {
+            System.err.println("Usage : hexdump file [start address] [end address] [output file]");
+            return;
+        }
+        long start = args.length > 1 ? Long.decode(args[1]) : 0;
+        long end = args.length > 2 ? Long.decode(args[2]) : size(args[0]) - 1;
+        var report = hexdumpFile(args[0], start, end, args.length > 3 ? args[3] : null);
+        System.err.println(report);
     }
 
-    private static String dump_6bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]));
-    }
+    // ============================================================================================
 
-    private static String dump_7bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]));
-    }
+    // Hide default constructor
+    private Hexdump(){}
 
-    private static String dump_8bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6], b[addr+7],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]));
+    // Format the bytes [from, to[ of a buffer, the first one at the given address
+    private static void dump(ByteBuffer buffer, long address, int from, int to, StringBuilder line, PrintStream out){
+        for (int i = from; i < to; i += LINE, address += LINE) {
+            int count = Math.min(LINE, to - i);
+            appendAddress(line, address);
+            line.append(" :");
+            for (int j = 0; j < count; j++) {
+                byte b = buffer.get(i + j);
+                line.append(' ').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+            // the lines of 6, 7 and 8 bytes have one more space
+            line.append(count >= 6 && count <= 8 ? "  | " : " | ");
+            for (int j = 0; j < count; j++) {
+                line.append(display_char(buffer.get(i + j)));
+            }
+            line.append(" |").append(System.lineSeparator());
+            if (line.length() >= BLOCK) {
+                out.append(line);
+                line.setLength(0);
+            }
+        }
     }
 
-    private static String dump_9bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]));
+    // Address in upper case hexadecimal, on at least 6 digits
+    private static void appendAddress(StringBuilder line, long address){
+        int digits = Math.max(6, (64 - Long.numberOfLeadingZeros(address) + 3) / 4);
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+            line.append(HEX[(int) (address >>> shift) & 0xF]);
+        }
     }
 
-    private static String dump_10bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],b[addr+9],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]),
-                display_char(b[addr+9]));
+    private static long size(String path){
+        try {
+            return Files.size(Path.of(path));
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
     }
 
-
     private static char display_char(byte c){
         return Character.isISOControl(c) ? '.' : (char) c;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,218 @@
+package cs107;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handle of a "Quite Ok Image" file which is decoded on the first access to its pixels.
+ * <p>
+ * The width, height, channels and color space are read from the header when the handle is created,
+ * which only costs the 14 bytes of the header : listing or sorting many files by their size does not
+ * decode any of them. The encoded file is kept as bytes, or as a path which is read again when the pixels
+ * are needed. What happens to the decoded image depends on the retention :
+ * <ul>
+ *     <li>NONE : the image is decoded at each access and not kept,</li>
+ *     <li>STRONG : the image is decoded once and kept until release is called,</li>
+ *     <li>SOFT : the image is kept until release is called or the garbage collector needs the memory,
+ *     it is decoded again on the next access.</li>
+ * </ul>
+ * Threads asking for the pixels at the same time wait for one decoding (STRONG and SOFT).
+ * The decoded image is shared between the callers and must not be modified.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class LazyImage {
+
+    /**
+     * What is kept of the decoded image between two accesses
+     */
+    public enum Retention {
+        NONE, STRONG, SOFT
+    }
+
+    private final byte[] content; // null when the file is read from path
+    private final Path path;
+    private final Retention retention;
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+
+    // the decoded image, written under the lock of the handle
+    private volatile Helper.Image image = null;
+    private volatile SoftReference<Helper.Image> softImage = null;
+    private final LongAdder decodes = new LongAdder();
+
+    private LazyImage(byte[] content, Path path, byte[] header, Retention retention){
+        assert retention != null;
+        this.content = content;
+        this.path = path;
+        this.retention = retention;
+        int[] decoded = QOIDecoder.decodeHeader(header);
+        width = decoded[0];
+        height = decoded[1];
+        channels = (byte) decoded[2];
+        colorSpace = (byte) decoded[3];
+    }
+
+    /**
+     * Handle of an encoded image in memory, the header is read right away
+     * @param content (byte[]) - Content of a "Quite Ok Image" file, kept without being copied
+     * @param retention (Retention) - What is kept of the decoded image
+     * @return (LazyImage) - The handle
+     * @throws AssertionError if content is null or the header is invalid
+     */
+    public static LazyImage of(byte[] content, Retention retention){
+        assert content != null && content.length >= QOISpecification.HEADER_SIZE;
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        System.arraycopy(content, 0, header, 0, header.length);
+        return new LazyImage(content, null, header, retention);
+    }
+
+    /**
+     * Handle of a "Quite Ok Image" file, only its header is read right away
+     * @param file (Path) - Path to the file, read again each time the image is decoded
+     * @param retention (Retention) - What is kept of the decoded image
+     * @return (LazyImage) - The handle
+     * @throws AssertionError if file is null or the header is invalid
+     */
+    public static LazyImage of(Path file, Retention retention){
+        assert file != null;
+        var header = ByteBuffer.allocate(QOISpecification.HEADER_SIZE);
+        try (var channel = FileChannel.open(file)) {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read until the header is complete or the file ends
+            }
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", file);
+        }
+        assert !header.hasRemaining() : "The file is shorter than a header";
+        return new LazyImage(null, file, header.array(), retention);
+    }
+
+    // ==================================================================================
+    // ================================= HEADER METHODS =================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (long) - Number of pixels of the image
+     */
+    public long pixels(){
+        return (long) width * height;
+    }
+
+    /**
+     * @return (Retention) - What is kept of the decoded image
+     */
+    public Retention retention(){
+        return retention;
+    }
+
+    // ==================================================================================
+    // ================================== PIXEL METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Decoded image, decoded now if it is not kept
+     * @return (Helper.Image) - The decoded image, shared, not to be modified
+     * @throws AssertionError if the file is not a valid "Quite Ok Image" file
+     */
+    public Helper.Image image(){
+        var kept = kept();
+        if (kept != null)
+            return kept;
+        if (retention == Retention.NONE)
+            return decode();
+        synchronized (this) {
+            kept = kept(); // another thread may have decoded it while this one was waiting
+            if (kept != null)
+                return kept;
+            var decoded = decode();
+            if (retention == Retention.STRONG)
+                image = decoded;
+            else
+                softImage = new SoftReference<>(decoded);
+            return decoded;
+        }
+    }
+
+    /**
+     * @return (boolean) - true if the decoded image is kept, the next call to image will not decode it
+     */
+    public boolean isDecoded(){
+        return kept() != null;
+    }
+
+    /**
+     * Forget the decoded image, the next call to image decodes it again
+     */
+    public void release(){
+        synchronized (this) {
+            image = null;
+            softImage = null;
+        }
+    }
+
+    /**
+     * @return (long) - Number of times the image was decoded
+     */
+    public long decodes(){
+        return decodes.sum();
+    }
+
+    @Override
+    public String toString(){
+        return String.format("LazyImage[%s, %dx%d, channels=%d, color space=%d, %s%s]",
+                path == null ? content.length + " bytes" : path, width, height, channels, colorSpace,
+                retention, isDecoded() ? ", decoded" : "");
+    }
+
+    // ==================================================================================
+
+    // Decoded image if it is kept, null otherwise
+    private Helper.Image kept(){
+        var strong = image;
+        if (strong != null)
+            return strong;
+        var soft = softImage;
+        return soft == null ? null : soft.get();
+    }
+
+    private Helper.Image decode(){
+        decodes.increment();
+        return QOIDecoder.decodeQoiFile(content != null ? ByteBuffer.wrap(content) : Helper.map(path.toString()));
+    }
+
+}
@@ -1,8 +1,30 @@
 package cs107;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.sql.SQLOutput;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 
 /**
  * Main entry point of the program.
@@ -29,6 +51,10 @@ public final class Main {
 
 
     public static void main(String[] args){
+        if (args.length > 0) {
+            run(args);
+            return;
+        }
         /*
         We've listed all the test methods here.
         Once you've implemented a new functionality, you can uncomment
@@ -64,6 +90,11 @@ public final class Main {
         assert testQoiOpLuma();
         assert testQoiOpRun();
         assert testEncodeData();
+        assert testEncodeDataPacked();
+        assert testEncodeDataPackedMatchesChannels();
+        assert testStreamEncoder();
+        assert testParallelEncoder();
+        assert testParallelFailure();
 
         // ========== Test QOIDecoder ==========
         assert testDecodeHeader();
@@ -73,6 +104,31 @@ public final class Main {
         assert testDecodeQoiOpLuma();
         assert testDecodeQoiOpRun();
         assert testDecodeData();
+        assert testDecodeDataFlat();
+        assert testDecodeDataFlatBytes();
+        assert testDecodeDataFlatMatchesChannels();
+        assert testStreamDecoder();
+        assert testDecodeMappedFile();
+        assert testSeekIndex();
+        assert testSeekIndexSidecar();
+        assert testStats();
+        assert testEvents();
+        assert testBatch();
+        assert testBatchOutputInsideInput();
+        assert testPipeline();
+        assert testPipelineWalkFailure();
+        assert testWatcher();
+        assert testServer();
+        assert testServerPixelLimit();
+        assert testImageCache();
+        assert testEncodeCache();
+        assert testEncodeCacheLinkedDestination();
+        assert testHexdumpFile();
+        assert testDiffPixels();
+        assert testDiffRanges();
+        assert testCompare();
+        assert testFlatImage();
+        assert testLazyImage();
 
 
         System.out.println("All the tests passes. Congratulations");
@@ -85,6 +141,24 @@ public final class Main {
 
     }
 
+    /**
+     * Run one of the tools of the program instead of the tests
+     * @param args (String[]) - Name of the tool followed by its arguments
+     */
+    private static void run(String[] args){
+        var toolArgs = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "batch" -> QOIBatch.main(toolArgs);
+            case "pipeline" -> QOIPipeline.main(toolArgs);
+            case "watch" -> QOIWatcher.main(toolArgs);
+            case "serve" -> QOIServer.main(toolArgs);
+            case "hexdump" -> Hexdump.main(toolArgs);
+            case "diff" -> Diff.main(toolArgs);
+            case "compare" -> QOICompare.main(toolArgs);
+            default -> System.err.println("Unknown tool \"" + args[0] + "\", available tools : batch, pipeline, watch, serve, hexdump, diff, compare");
+        }
+    }
+
     // ============================================================================================
 
     /**
@@ -107,8 +181,8 @@ public final class Main {
      * @param outputFile (String) - The path where to store the generated "PNG" Image
      */
     public static void qoiToPng(String inputFile, String outputFile){
-        // Read in binary mode the file 'input_file'
-        var inputFileContent = Helper.read(inputFile);
+        // Map in memory the file 'input_file', it is decoded in place
+        var inputFileContent = Helper.map(inputFile);
         // Decode the file using the 'QOI' decoder
         var computedImage = QOIDecoder.decodeQoiFile(inputFileContent);
         // Write an image to 'output_file'
@@ -122,6 +196,16 @@ public final class Main {
      * @return (int) - The ratio
      */
     public static double ratio(int png, int qoi){
+        return ratio((long) png, (long) qoi);
+    }
+
+    /**
+     * Computes the ratio of files bigger than 2 GB, or of several files
+     * @param png (long) - Size of the "PNG" files
+     * @param qoi (long) - Size of the "QOI" files
+     * @return (double) - The ratio
+     */
+    public static double ratio(long png, long qoi){
         return 100d * png / qoi;
     }
 
@@ -281,6 +365,97 @@ public final class Main {
         return Arrays.equals(expected, encoding);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataPacked(){
+        int[] pixels = {0xFF000000, 0xFF000000, 0xFF000000, 0xFF00FF00, 0xFFEEECEE, 0xFF000000, 0xFF646464, 0x5A5A5A5A};
+        byte[] expected = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] encoding = QOIEncoder.encodeData(pixels);
+        return Arrays.equals(expected, encoding);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataPackedMatchesChannels(){
+        int[][] image = sampleImage(37, 23, 2022);
+        int[] pixels = new int[37 * 23];
+        for (int i = 0; i < image.length; i++) {
+            System.arraycopy(image[i], 0, pixels, i * 37, 37);
+        }
+        byte[] expected = QOIEncoder.encodeData(ArrayUtils.imageToChannels(image));
+        return Arrays.equals(expected, QOIEncoder.encodeData(pixels));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testStreamEncoder(){
+        var image = Helper.generateImage(sampleImage(29, 31, 3), QOISpecification.RGBA, QOISpecification.sRGB);
+        var output = new ByteArrayOutputStream();
+        try (var encoder = new QOIStreamEncoder(output, 29, 31, QOISpecification.RGBA, QOISpecification.sRGB, 32)) {
+            for (int[] row : image.data()) {
+                encoder.writeRow(row);
+            }
+        }
+        return Arrays.equals(QOIEncoder.qoiFile(image), output.toByteArray());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testParallelEncoder(){
+        var pool = new ForkJoinPool(3);
+        try {
+            var image = Helper.generateImage(sampleImage(50, 40, 7), QOISpecification.RGBA, QOISpecification.sRGB);
+            var flat = Helper.generateImage(new int[40][50], QOISpecification.RGBA, QOISpecification.sRGB);
+            byte[] expected = QOIEncoder.qoiFile(image);
+            return Arrays.equals(expected, QOIParallelEncoder.qoiFile(image, pool, 7))
+                    && Arrays.equals(expected, QOIParallelEncoder.qoiFile(image, pool, 40))
+                    && Arrays.equals(QOIEncoder.qoiFile(flat), QOIParallelEncoder.qoiFile(flat, pool, 9));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testParallelFailure(){
+        var pool = new ForkJoinPool(3);
+        try {
+            // every task runs to its end, and the error of the first failed one is thrown
+            int[] done = new int[16];
+            try {
+                Parallel.runAll(pool, done.length, k -> {
+                    done[k] = 1;
+                    if (k % 5 == 3)
+                        throw new IllegalStateException("part " + k);
+                });
+                return false;
+            } catch (IllegalStateException e) {
+                return "part 3".equals(e.getMessage()) && Arrays.stream(done).sum() == done.length;
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Deterministic image exercising every chunk type (runs longer than 62, small and big differences, alpha changes)
+    private static int[][] sampleImage(int width, int height, long seed){
+        var random = new Random(seed);
+        int[][] image = new int[height][width];
+        int pixel = 0xFF000000;
+        for (int x = 0; x < height; x++) {
+            for (int y = 0; y < width; y++) {
+                switch (random.nextInt(8)) {
+                    case 0, 1, 2 -> { } // run
+                    case 3 -> pixel = pixel + 0x00010101 * (random.nextInt(3) - 1);
+                    case 4 -> pixel = pixel + (random.nextInt(16) << 16) + (random.nextInt(16) << 8);
+                    case 5 -> pixel = image[random.nextInt(x + 1)][random.nextInt(width)];
+                    case 6 -> pixel = 0xFF000000 | random.nextInt(1 << 24);
+                    default -> pixel = random.nextInt();
+                }
+                image[x][y] = pixel;
+            }
+            if (x % 5 == 4) {
+                Arrays.fill(image[x], image[x][0]); // long runs crossing rows
+            }
+        }
+        return image;
+    }
+
     // ============================================================================================
     // ============================== QOIDecoder examples =========================================
     // ============================================================================================
@@ -352,4 +527,764 @@ public final class Main {
         return Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 4, 2));
     }
 
-}
\ No newline at end of file
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataFlat(){
+        byte[] encoding = {0, 0, -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90, 0};
+        int[] expected = {0xFF000000, 0xFF000000, 0xFF000000, 0xFF00FF00, 0xFFEEECEE, 0xFF000000, 0xFF646464, 0x5A5A5A5A};
+        int[] decoded = new int[8];
+        QOIDecoder.decodeData(encoding, 2, encoding.length - 3, decoded);
+        return Arrays.equals(expected, decoded);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataFlatBytes(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] expectedRGBA = {0,0,0,-1, 0,0,0,-1, 0,0,0,-1, 0,-1,0,-1, -18,-20,-18,-1, 0,0,0,-1, 100,100,100,-1, 90,90,90,90};
+        byte[] expectedRGB = {0,0,0, 0,0,0, 0,0,0, 0,-1,0, -18,-20,-18, 0,0,0, 100,100,100, 90,90,90};
+        byte[] rgba = new byte[8 * 4];
+        byte[] rgb = new byte[8 * 3];
+        QOIDecoder.decodeData(encoding, 0, encoding.length, rgba, QOISpecification.RGBA);
+        QOIDecoder.decodeData(encoding, 0, encoding.length, rgb, QOISpecification.RGB);
+        return Arrays.equals(expectedRGBA, rgba) && Arrays.equals(expectedRGB, rgb);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataFlatMatchesChannels(){
+        int[][] image = sampleImage(41, 19, 107);
+        byte[] encoding = QOIEncoder.encodeData(ArrayUtils.imageToChannels(image));
+        int[][] expected = ArrayUtils.channelsToImage(QOIDecoder.decodeData(encoding, 41, 19), 19, 41);
+        int[] decoded = new int[41 * 19];
+        QOIDecoder.decodeData(encoding, 0, encoding.length, decoded);
+        for (int i = 0; i < expected.length; i++) {
+            if (!Arrays.equals(expected[i], 0, 41, decoded, i * 41, (i + 1) * 41))
+                return false;
+        }
+        return Arrays.deepEquals(image, expected);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testStreamDecoder(){
+        var image = Helper.generateImage(sampleImage(33, 27, 42), QOISpecification.RGBA, QOISpecification.ALL);
+        var file = QOIEncoder.qoiFile(image);
+        int[][] rows = new int[27][];
+        try (var decoder = new QOIStreamDecoder(new ByteArrayInputStream(file), 22)) {
+            if (decoder.width() != 33 || decoder.height() != 27 || decoder.colorSpace() != QOISpecification.ALL)
+                return false;
+            decoder.decode((y, row) -> rows[y] = row.clone());
+            if (decoder.readRow() != null)
+                return false;
+        }
+        return Arrays.deepEquals(image.data(), rows);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeMappedFile(){
+        var expected = QOIDecoder.decodeQoiFile(Helper.read("references/qoi_op_luma.qoi"));
+        return expected.equals(QOIDecoder.decodeQoiFile(Helper.map("references/qoi_op_luma.qoi")));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testSeekIndex(){
+        var image = Helper.generateImage(sampleImage(23, 45, 11), QOISpecification.RGBA, QOISpecification.sRGB);
+        var file = ByteBuffer.wrap(QOIEncoder.qoiFile(image));
+        var seekIndex = QOISeekIndex.build(file, 4);
+        int[][] rows = seekIndex.decodeRows(file, 9, 30);
+        var pool = new ForkJoinPool(2);
+        try {
+            return Arrays.deepEquals(Arrays.copyOfRange(image.data(), 9, 39), rows)
+                    && image.equals(seekIndex.decodeQoiFile(file, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testSeekIndexSidecar(){
+        var image = Helper.generateImage(sampleImage(23, 45, 11), QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] content = QOIEncoder.qoiFile(image);
+        try {
+            var folder = Files.createTempDirectory("qoi-seek-");
+            try {
+                var file = folder.resolve("image.qoi");
+                var sidecar = Path.of(QOISeekIndex.sidecarPath(file.toString()));
+                Helper.write(file, content);
+                var modified = Files.getLastModifiedTime(file);
+                boolean loaded = QOISeekIndex.load(file.toString(), 4).interval() == 4
+                        && QOISeekIndex.load(file.toString(), 8).interval() == 4;
+
+                // same size and modification time, another content : kept, unless the hash is verified
+                byte[] built = Files.readAllBytes(sidecar);
+                content[13] = QOISpecification.ALL;
+                Helper.write(file, content);
+                Files.setLastModifiedTime(file, modified);
+                loaded &= QOISeekIndex.load(file.toString(), 8).interval() == 4 && Arrays.equals(built, Files.readAllBytes(sidecar));
+                loaded &= QOISeekIndex.load(file.toString(), 8, true).interval() == 8 && !Arrays.equals(built, Files.readAllBytes(sidecar));
+
+                // another modification time : built again
+                Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 2000));
+                loaded &= QOISeekIndex.load(file.toString(), 16).interval() == 16;
+
+                // truncated sidecar, and sidecar with an interval of 0 : built again
+                Helper.write(sidecar, Arrays.copyOf(Files.readAllBytes(sidecar), 40));
+                loaded &= QOISeekIndex.load(file.toString(), 2).interval() == 2;
+                byte[] zero = Files.readAllBytes(sidecar);
+                Arrays.fill(zero, 36, 40, (byte) 0); // the interval
+                Helper.write(sidecar, zero);
+                var seekIndex = QOISeekIndex.load(file.toString(), 4);
+                return loaded && seekIndex.interval() == 4
+                        && Arrays.deepEquals(Arrays.copyOfRange(image.data(), 9, 39), seekIndex.decodeRows(ByteBuffer.wrap(content), 9, 30));
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testStats(){
+        var image = Helper.generateImage(sampleImage(41, 19, 5), QOISpecification.RGBA, QOISpecification.sRGB);
+        var encoded = new QOIStats();
+        var decoded = new QOIStats();
+        var file = QOIEncoder.qoiFile(image, encoded);
+        var result = QOIDecoder.decodeQoiFile(file, decoded);
+        long runs = encoded.chunks(QOIStats.Op.RUN);
+        return image.equals(result)
+                && encoded.toString().equals(decoded.toString())
+                && encoded.pixels() == 41 * 19
+                && encoded.encodedBytes() == file.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length
+                && encoded.indexHits() == encoded.chunks(QOIStats.Op.INDEX)
+                && runs > 0 && encoded.averageRunLength() >= 1
+                && encoded.bytes(QOIStats.Op.RGBA) == 5 * encoded.chunks(QOIStats.Op.RGBA);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEvents(){
+        var image = Helper.generateImage(sampleImage(17, 13, 9), QOISpecification.RGB, QOISpecification.sRGB);
+        try (var recording = new Recording()) {
+            recording.enable(QOIEvents.Encode.class);
+            recording.enable(QOIEvents.Decode.class);
+            recording.start();
+            var file = QOIEncoder.qoiFile(image);
+            QOIDecoder.decodeQoiFile(file);
+            recording.stop();
+
+            var dump = Files.createTempFile("qoi-events-", ".jfr");
+            try {
+                recording.dump(dump);
+                boolean encoded = false;
+                boolean decoded = false;
+                for (var event : RecordingFile.readAllEvents(dump)) {
+                    boolean sizes = event.getInt("width") == 17 && event.getInt("height") == 13
+                            && event.getInt("channels") == 3 && event.getLong("bytes") == file.length;
+                    switch (event.getEventType().getName()) {
+                        case "cs107.Encode" -> encoded |= sizes;
+                        case "cs107.Decode" -> decoded |= sizes;
+                    }
+                }
+                return encoded && decoded;
+            } finally {
+                Files.delete(dump);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testBatch(){
+        var image = Helper.generateImage(sampleImage(21, 14, 8), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-batch-in-");
+            var output = Files.createTempDirectory("qoi-batch-out-");
+            try {
+                Files.createDirectories(input.resolve("nested"));
+                Helper.writeImage(input.resolve("first.png"), image);
+                Helper.writeImage(input.resolve("nested/second.PNG"), image);
+                Helper.write(input.resolve("third.qoi"), QOIEncoder.qoiFile(image));
+                Helper.write(input.resolve("broken.png"), new byte[]{1, 2, 3});
+                Helper.write(input.resolve("ignored.txt"), new byte[]{1, 2, 3});
+
+                var report = QOIBatch.convert(input, output, 2, false);
+                return report.files() == 3 && report.failures().size() == 1
+                        && report.failures().get(0).contains("broken.png")
+                        && image.equals(QOIDecoder.decodeQoiFile(Helper.read(output.resolve("first.qoi").toString())))
+                        && image.equals(QOIDecoder.decodeQoiFile(Helper.read(output.resolve("nested/second.qoi").toString())))
+                        && image.equals(Helper.readImage(output.resolve("third.png").toString()))
+                        && !Files.exists(output.resolve("ignored.txt"));
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testBatchOutputInsideInput(){
+        var image = Helper.generateImage(sampleImage(12, 9, 3), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-batch-nested-");
+            try {
+                Helper.writeImage(input.resolve("a.png"), image);
+                Helper.write(input.resolve("b.qoi"), QOIEncoder.qoiFile(image));
+                var output = input.resolve("out");
+                var cache = new QOIEncodeCache(input.resolve("cache"), 1 << 20, true);
+                // the outputs and the cache entries of the first run are not converted again by the second one
+                var first = QOIBatch.convert(input, output, 1, false, cache);
+                var second = QOIBatch.convert(input.resolve("."), input.resolve("../" + input.getFileName() + "/out"), 1, false, cache);
+                boolean skipped = first.files() == 2 && second.files() == 2 && second.failures().isEmpty()
+                        && !Files.exists(output.resolve("out")) && !Files.exists(output.resolve("cache"));
+                try {
+                    QOIBatch.convert(input, input, 1, false);
+                    return false;
+                } catch (RuntimeException e) {
+                    // the input directory cannot be the output directory
+                }
+                try {
+                    new QOIPipeline(1, 1, 1, 1).run(output, input);
+                    return false;
+                } catch (RuntimeException e) {
+                    return skipped;
+                }
+            } finally {
+                deleteTree(input);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPipeline(){
+        var image = Helper.generateImage(sampleImage(19, 16, 12), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-pipeline-in-");
+            var output = Files.createTempDirectory("qoi-pipeline-out-");
+            try {
+                for (int i = 0; i < 5; i++) {
+                    Helper.writeImage(input.resolve("image" + i + ".png"), image);
+                }
+                Helper.write(input.resolve("image5.qoi"), QOIEncoder.qoiFile(image));
+
+                var pipeline = new QOIPipeline(1, 2, 1, 1);
+                var report = pipeline.run(input, output);
+                var stages = pipeline.stages();
+                boolean converted = report.files() == 6 && report.failures().isEmpty()
+                        && stages.get(0).items() == 6 && stages.get(2).items() == 6
+                        && pipeline.queues().get(0).maxDepth() <= 1 && pipeline.queues().get(1).depth() == 0;
+                for (int i = 0; i < 5; i++) {
+                    var file = output.resolve("image" + i + ".qoi").toString();
+                    converted &= image.equals(QOIDecoder.decodeQoiFile(Helper.read(file)));
+                }
+                return converted && image.equals(Helper.readImage(output.resolve("image5.png").toString()));
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPipelineWalkFailure(){
+        var image = Helper.generateImage(sampleImage(19, 16, 12), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-pipeline-in-");
+            var output = Files.createTempDirectory("qoi-pipeline-out-");
+            try {
+                var files = new ArrayList<Path>();
+                for (int i = 0; i < 4; i++) {
+                    files.add(input.resolve("image" + i + ".png"));
+                    Helper.writeImage(files.get(i), image);
+                }
+                // the walk fails after the fourth file, on a reader thread
+                var walk = files.iterator();
+                var failing = new Iterator<Path>() {
+                    @Override
+                    public boolean hasNext(){
+                        if (!walk.hasNext())
+                            throw new UncheckedIOException(new IOException("directory not readable"));
+                        return true;
+                    }
+
+                    @Override
+                    public Path next(){
+                        return walk.next();
+                    }
+                };
+                try {
+                    new QOIPipeline(2, 2, 1, 1).run(failing, input, output);
+                    return false;
+                } catch (UncheckedIOException e) {
+                    return e.getCause().getMessage().equals("directory not readable");
+                }
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testWatcher(){
+        var image = Helper.generateImage(sampleImage(13, 11, 4), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-watch-in-");
+            var output = Files.createTempDirectory("qoi-watch-out-");
+            try {
+                Helper.writeImage(input.resolve("before.png"), image);
+                try (var watcher = new QOIWatcher(input, output, 2, 20)) {
+                    Files.createDirectories(input.resolve("nested"));
+                    Helper.writeImage(input.resolve("nested/after.png"), image);
+                    var before = output.resolve("before.qoi");
+                    var after = output.resolve("nested/after.qoi");
+                    long deadline = System.nanoTime() + 10_000_000_000L;
+                    while (watcher.report().files() < 2 && System.nanoTime() < deadline) {
+                        Thread.sleep(10);
+                    }
+                    return watcher.report().files() == 2
+                            && image.equals(QOIDecoder.decodeQoiFile(Helper.read(before.toString())))
+                            && image.equals(QOIDecoder.decodeQoiFile(Helper.read(after.toString())));
+                }
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+            }
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testServer(){
+        var image = Helper.generateImage(sampleImage(24, 18, 6), QOISpecification.RGBA, QOISpecification.sRGB);
+        var png = new ByteArrayOutputStream();
+        Helper.writeImage(png, image);
+        try (var server = new QOIServer(0, 2, false)) {
+            var client = HttpClient.newHttpClient();
+            var base = "http://localhost:" + server.port();
+            var encoded = client.send(HttpRequest.newBuilder(URI.create(base + "/encode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(png.toByteArray())).build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            var decoded = client.send(HttpRequest.newBuilder(URI.create(base + "/decode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(QOIEncoder.qoiFile(image))).build(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            var invalid = client.send(HttpRequest.newBuilder(URI.create(base + "/decode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[]{1, 2, 3})).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            // a header announcing 65536x65536 pixels, rejected before the rows are allocated
+            var huge = client.send(HttpRequest.newBuilder(URI.create(base + "/decode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[]{'q', 'o', 'i', 'f', 0, 1, 0, 0, 0, 1, 0, 0, 4, 0})).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            var metrics = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            return encoded.statusCode() == 200 && Arrays.equals(encoded.body(), QOIEncoder.qoiFile(image))
+                    && decoded.statusCode() == 200 && image.equals(Helper.readImage(decoded.body()))
+                    && invalid.statusCode() == 400 && huge.statusCode() == 413
+                    && metrics.body().contains("encode requests=1 failures=0")
+                    && metrics.body().contains("decode requests=3 failures=2");
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testServerPixelLimit(){
+        var image = Helper.generateImage(sampleImage(24, 18, 6), QOISpecification.RGBA, QOISpecification.sRGB);
+        var png = new ByteArrayOutputStream();
+        Helper.writeImage(png, image);
+        // the image has 432 pixels
+        try (var server = new QOIServer(0, 1, false, 400)) {
+            var client = HttpClient.newHttpClient();
+            var base = "http://localhost:" + server.port();
+            var encoded = client.send(HttpRequest.newBuilder(URI.create(base + "/encode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(png.toByteArray())).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            var decoded = client.send(HttpRequest.newBuilder(URI.create(base + "/decode"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(QOIEncoder.qoiFile(image))).build(),
+                    HttpResponse.BodyHandlers.discarding());
+            return encoded.statusCode() == 413 && decoded.statusCode() == 413;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testImageCache(){
+        var first = Helper.generateImage(sampleImage(16, 16, 1), QOISpecification.RGBA, QOISpecification.sRGB);
+        var second = Helper.generateImage(sampleImage(16, 16, 2), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var folder = Files.createTempDirectory("qoi-cache-");
+            try {
+                var a = folder.resolve("a.qoi");
+                var b = folder.resolve("b.qoi");
+                Helper.write(a, QOIEncoder.qoiFile(first));
+                Helper.write(b, QOIEncoder.qoiFile(second));
+
+                // room for one image only
+                var cache = new QOIImageCache(16 * (16 + 4 * 16) + 16);
+                boolean cached = first.equals(cache.get(a.toString()))
+                        && cache.get(a.toString()) == cache.get(folder.resolve("../" + folder.getFileName() + "/a.qoi").toString())
+                        && cache.hits() == 2 && cache.misses() == 1;
+                cached &= second.equals(cache.get(b.toString())) && cache.evictions() == 1 && cache.size() == 1;
+
+                // a new version of the file is decoded again
+                Helper.write(b, QOIEncoder.qoiFile(first));
+                Files.setLastModifiedTime(b, FileTime.fromMillis(Files.getLastModifiedTime(b).toMillis() + 1000));
+                cached &= first.equals(cache.get(b.toString())) && cache.loads() == 3;
+
+                // concurrent misses of the same file are decoded once
+                cache.clear();
+                var pool = new ForkJoinPool(4);
+                try {
+                    Parallel.runAll(pool, 8, k -> cache.get(a.toString()));
+                } finally {
+                    pool.shutdown();
+                }
+                return cached && cache.loads() == 4 && cache.hits() + cache.misses() == 13;
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeCache(){
+        var first = Helper.generateImage(sampleImage(16, 16, 1), QOISpecification.RGBA, QOISpecification.sRGB);
+        var second = Helper.generateImage(sampleImage(16, 16, 2), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var input = Files.createTempDirectory("qoi-encode-in-");
+            var output = Files.createTempDirectory("qoi-encode-out-");
+            var store = Files.createTempDirectory("qoi-encode-cache-");
+            try {
+                Helper.writeImage(input.resolve("a.png"), first);
+                Files.copy(input.resolve("a.png"), input.resolve("duplicate.png"));
+                Helper.writeImage(input.resolve("b.png"), second);
+
+                var cache = new QOIEncodeCache(store, 1 << 20, true);
+                var report = QOIBatch.convert(input, output, 1, false, cache);
+                byte[] expected = QOIEncoder.qoiFile(first);
+                byte[] other = QOIEncoder.qoiFile(second);
+                boolean converted = report.files() == 3 && report.failures().isEmpty()
+                        && cache.hits() == 1 && cache.misses() == 2 && cache.size() == 2
+                        && Arrays.equals(expected, Helper.read(output.resolve("a.qoi").toString()))
+                        && Arrays.equals(expected, Helper.read(output.resolve("duplicate.qoi").toString()))
+                        && Arrays.equals(other, Helper.read(output.resolve("b.qoi").toString()));
+
+                // the entries are found again when the store is opened, and evicted over the cap.
+                // Only the stale temporary files are deleted, the others may belong to a running write
+                var running = Files.write(store.resolve(".running.tmp"), new byte[8]);
+                var stale = Files.write(store.resolve(".stale.tmp"), new byte[8]);
+                Files.setLastModifiedTime(stale, FileTime.fromMillis(System.currentTimeMillis() - 2 * QOIEncodeCache.STALE_TEMPORARY_MILLIS));
+                converted &= new QOIEncodeCache(store, 1 << 20, false).size() == 2 && Files.exists(running) && !Files.exists(stale);
+                Files.delete(running);
+                var small = new QOIEncodeCache(store, Math.max(expected.length, other.length), false);
+                converted &= small.size() == 1 && small.evictions() == 1;
+                // the linked destinations keep their content once the entries are deleted
+                small.clear();
+                return converted && small.bytes() == 0
+                        && Arrays.equals(expected, Helper.read(output.resolve("duplicate.qoi").toString()));
+            } finally {
+                deleteTree(input);
+                deleteTree(output);
+                deleteTree(store);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeCacheLinkedDestination(){
+        var small = Helper.generateImage(sampleImage(16, 16, 1), QOISpecification.RGBA, QOISpecification.sRGB);
+        var large = Helper.generateImage(sampleImage(64, 64, 2), QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = QOIEncoder.qoiFile(small);
+        try {
+            var folder = Files.createTempDirectory("qoi-encode-link-");
+            try {
+                var input = folder.resolve("small.png");
+                var other = folder.resolve("large.png");
+                var destination = folder.resolve("small.qoi");
+                Helper.writeImage(input, small);
+                Helper.writeImage(other, large);
+                // only the small image fits in the store, the large one is written without an entry
+                var cache = new QOIEncodeCache(folder.resolve("cache"), expected.length, true);
+                boolean linked = !cache.encode(input, destination) && QOIEncoder.qoiFile(large).length > expected.length;
+
+                // the destination linked to the entry is rewritten by the cache and by the other tools
+                cache.encode(other, destination);
+                Helper.write(destination, new byte[]{1, 2, 3});
+                Helper.writeImage(destination, large);
+
+                var again = folder.resolve("again.qoi");
+                return linked && cache.encode(input, again) && cache.size() == 1
+                        && Arrays.equals(expected, Helper.read(again.toString()));
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testHexdumpFile(){
+        byte[] content = new byte[57];
+        new Random(7).nextBytes(content);
+        var stdout = System.out;
+        try {
+            var folder = Files.createTempDirectory("qoi-hexdump-");
+            try {
+                var file = folder.resolve("content.bin");
+                var dump = folder.resolve("content.txt");
+                Helper.write(file, content);
+
+                var printed = new ByteArrayOutputStream();
+                System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+                Hexdump.hexdump(content, 3, 55);
+                System.setOut(stdout);
+
+                var report = Hexdump.hexdumpFile(file.toString(), 3, 55, dump.toString());
+                var lines = Files.readAllLines(dump);
+                return report.bytes() == 53
+                        && printed.toString(StandardCharsets.UTF_8).equals(Files.readString(dump))
+                        && lines.size() == 8 && lines.get(1).startsWith("000003 : ") && lines.get(6).startsWith("000035 : ");
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDiffPixels(){
+        int[][] pixels = sampleImage(24, 12, 5);
+        var image = Helper.generateImage(pixels, QOISpecification.RGBA, QOISpecification.sRGB);
+        int[][] changed = sampleImage(24, 12, 5);
+        changed[3][5] ^= 0x00_01_00_00;
+        changed[3][20] ^= 0x00_00_00_01;
+        changed[7][0] ^= 0x01_00_00_00;
+        var stdout = System.out;
+        try {
+            var folder = Files.createTempDirectory("qoi-diff-");
+            try {
+                var encoded = folder.resolve("encoded.qoi").toString();
+                var rgba = folder.resolve("rgba.qoi").toString();
+                var other = folder.resolve("other.qoi").toString();
+                Helper.write(Path.of(encoded), QOIEncoder.qoiFile(image));
+                Helper.write(Path.of(rgba), rgbaQoiFile(image));
+                Helper.write(Path.of(other), QOIEncoder.qoiFile(
+                        Helper.generateImage(changed, QOISpecification.RGBA, QOISpecification.sRGB)));
+
+                var printed = new ByteArrayOutputStream();
+                System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+                var same = Diff.diffPixels(encoded, rgba, false);
+                var first = Diff.diffPixels(encoded, other, false);
+                var all = Diff.diffPixels(rgba, other, true);
+
+                // a truncated file and a file with a bad EOF never have the same pixels
+                byte[] content = QOIEncoder.qoiFile(image);
+                var truncated = folder.resolve("truncated.qoi").toString();
+                var badEnd = folder.resolve("bad-end.qoi").toString();
+                Helper.write(Path.of(truncated), Arrays.copyOf(content, content.length / 2));
+                content[content.length - 1] = 0;
+                Helper.write(Path.of(badEnd), content);
+                var failed = new ByteArrayOutputStream();
+                System.setOut(new PrintStream(failed, true, StandardCharsets.UTF_8));
+                var cut = Diff.diffPixels(encoded, truncated, true);
+                var end = Diff.diffPixels(badEnd, encoded, false);
+                System.setOut(stdout);
+
+                return same.samePixels() && same.sameHeader() && same.decodeError() == null
+                        && !cut.samePixels() && cut.decodeError() != null && !end.samePixels() && end.decodeError() != null
+                        && !failed.toString(StandardCharsets.UTF_8).contains("same pixels")
+                        && first.x() == 5 && first.y() == 3 && first.pixels() == 1 && first.rows() == 1
+                        && all.x() == 5 && all.y() == 3 && all.pixels() == 3 && all.rows() == 2
+                        // the pixel (5, 3) is the 78th chunk of the file made of QOI_OP_RGBA chunks
+                        && printed.toString(StandardCharsets.UTF_8).contains(
+                                String.format("QOI_OP_RGBA at offset [%06X]", QOISpecification.HEADER_SIZE + 5 * (3 * 24 + 5)));
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            System.setOut(stdout);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDiffRanges(){
+        byte[] b1 = new byte[5000];
+        new Random(11).nextBytes(b1);
+        byte[] b2 = b1.clone();
+        b2[16] ^= 1;
+        for (int i = 100; i < 120; i++) {
+            b2[i] ^= (byte) 0x80;
+        }
+        // one range for each of the 1500 differences after the cap
+        for (int i = 2000; i < 5000; i += 2) {
+            b2[i] ^= 1;
+        }
+        var stdout = System.out;
+        var printed = new ByteArrayOutputStream();
+        try {
+            System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+            Diff.diff(b1, b2);
+        } finally {
+            System.setOut(stdout);
+        }
+        var lines = printed.toString(StandardCharsets.UTF_8).lines().toList();
+        return lines.get(0).equals(String.format("[000010] ~ %02x ~ %02x", b1[16], b2[16]))
+                && lines.get(1).startsWith("[000064-000077] ~ ") && lines.get(1).endsWith(" ..")
+                && lines.size() == 1000 + 2
+                && lines.get(1000).equals("== 1521 different byte(s) in 1502 range(s), 502 range(s) not shown");
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testCompare(){
+        var first = Helper.generateImage(sampleImage(20, 10, 1), QOISpecification.RGBA, QOISpecification.sRGB);
+        var second = Helper.generateImage(sampleImage(20, 10, 2), QOISpecification.RGBA, QOISpecification.sRGB);
+        try {
+            var expected = Files.createTempDirectory("qoi-expected-");
+            var actual = Files.createTempDirectory("qoi-actual-");
+            try {
+                Files.createDirectories(expected.resolve("sub"));
+                Files.createDirectories(actual.resolve("sub"));
+                Helper.write(expected.resolve("same.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(actual.resolve("same.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(expected.resolve("sub/encoded.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(actual.resolve("sub/encoded.qoi"), rgbaQoiFile(first));
+                Helper.write(expected.resolve("changed.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(actual.resolve("changed.qoi"), QOIEncoder.qoiFile(second));
+                Helper.write(expected.resolve("removed.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(actual.resolve("broken.qoi"), new byte[]{1, 2, 3});
+                Helper.write(expected.resolve("broken.qoi"), QOIEncoder.qoiFile(second));
+                Helper.writeImage(expected.resolve("image.png"), second);
+                Helper.writeImage(actual.resolve("image.png"), second);
+                // same pixels, another color space
+                byte[] linear = QOIEncoder.qoiFile(first);
+                linear[13] = QOISpecification.ALL;
+                Helper.write(expected.resolve("space.qoi"), QOIEncoder.qoiFile(first));
+                Helper.write(actual.resolve("space.qoi"), linear);
+
+                var report = QOICompare.compare(expected, actual, 3);
+                var statuses = report.results().stream().map(result -> result.file() + "=" + result.status()).toList();
+                return statuses.equals(List.of("broken.qoi=MISMATCH", "changed.qoi=MISMATCH",
+                        "image.png=IDENTICAL", "removed.qoi=MISSING", "same.qoi=IDENTICAL", "space.qoi=MISMATCH",
+                        Path.of("sub", "encoded.qoi") + "=PIXELS_EQUAL"))
+                        && !report.passed() && report.count(QOICompare.Status.MISMATCH) == 3
+                        && report.results().get(1).expected().startsWith("20x10:4:0:")
+                        && report.results().get(5).actual().startsWith("20x10:4:1:")
+                        && report.results().get(0).actual().startsWith("error");
+            } finally {
+                deleteTree(expected);
+                deleteTree(actual);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Encode an image with a QOI_OP_RGBA chunk for every pixel: the same pixels as QOIEncoder::qoiFile, other bytes
+    private static byte[] rgbaQoiFile(Helper.Image image){
+        var chunks = new ArrayList<byte[]>();
+        chunks.add(QOIEncoder.qoiHeader(image));
+        for (var pixel : ArrayUtils.imageToChannels(image.data())) {
+            chunks.add(QOIEncoder.qoiOpRGBA(pixel));
+        }
+        chunks.add(QOISpecification.QOI_EOF);
+        return ArrayUtils.concat(chunks.toArray(new byte[0][]));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testFlatImage(){
+        var image = Helper.generateImage(sampleImage(30, 20, 4), QOISpecification.RGBA, QOISpecification.sRGB);
+        var flat = FlatImage.of(image);
+        byte[] encoded = QOIEncoder.qoiFile(image);
+        var decoded = QOIDecoder.decodeFlatImage(encoded);
+        boolean converted = flat.toImage().equals(image) && Arrays.equals(QOIEncoder.qoiFile(flat), encoded)
+                && decoded.equals(flat) && decoded.hashCode() == flat.hashCode() && decoded.get(7, 5) == image.data()[5][7];
+
+        // a region is a view of the same array, equal to a copy of its pixels
+        var region = flat.region(4, 3, 10, 8);
+        int[][] copy = new int[8][];
+        for (int y = 0; y < 8; y++) {
+            copy[y] = Arrays.copyOfRange(image.data()[y + 3], 4, 14);
+        }
+        var small = Helper.generateImage(copy, QOISpecification.RGBA, QOISpecification.sRGB);
+        converted &= region.pixels() == flat.pixels() && region.stride() == 30
+                && region.equals(FlatImage.of(small)) && region.toImage().equals(small)
+                && Arrays.equals(QOIEncoder.qoiFile(region), QOIEncoder.qoiFile(small));
+
+        // images as map keys
+        var names = new HashMap<FlatImage, String>();
+        names.put(flat, "image");
+        names.put(region, "region");
+        int[][] changed = sampleImage(30, 20, 4);
+        changed[19][29] ^= 1;
+        var other = FlatImage.of(Helper.generateImage(changed, QOISpecification.RGBA, QOISpecification.sRGB));
+        return converted && "image".equals(names.get(decoded)) && "region".equals(names.get(FlatImage.of(small)))
+                && !other.equals(flat) && names.get(other) == null;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testLazyImage(){
+        var image = Helper.generateImage(sampleImage(24, 16, 6), QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] encoded = QOIEncoder.qoiFile(image);
+        try {
+            var folder = Files.createTempDirectory("qoi-lazy-");
+            try {
+                var file = folder.resolve("image.qoi");
+                Helper.write(file, encoded);
+
+                // the header is known before any decoding
+                var strong = LazyImage.of(file, LazyImage.Retention.STRONG);
+                boolean lazy = strong.width() == 24 && strong.height() == 16 && strong.pixels() == 24 * 16
+                        && strong.channels() == QOISpecification.RGBA && strong.decodes() == 0 && !strong.isDecoded();
+                lazy &= strong.image().equals(image) && strong.image() == strong.image() && strong.decodes() == 1;
+                strong.release();
+                lazy &= !strong.isDecoded() && strong.image().equals(image) && strong.decodes() == 2;
+
+                var none = LazyImage.of(encoded, LazyImage.Retention.NONE);
+                lazy &= none.image().equals(image) && none.image() != none.image() && none.decodes() == 3;
+                var soft = LazyImage.of(encoded, LazyImage.Retention.SOFT);
+                lazy &= soft.image().equals(image) && soft.decodes() == 1;
+
+                // concurrent accesses are decoded once
+                var shared = LazyImage.of(encoded, LazyImage.Retention.STRONG);
+                var pool = new ForkJoinPool(4);
+                try {
+                    Parallel.runAll(pool, 8, k -> shared.image());
+                } finally {
+                    pool.shutdown();
+                }
+                return lazy && shared.decodes() == 1;
+            } finally {
+                deleteTree(folder);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Delete a temporary directory and its content
+    private static void deleteTree(Path root) throws IOException {
+        try (var walk = Files.walk(root)) {
+            for (var path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package cs107;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+/**
+ * Fork-join helpers shared by the parallel encoder and decoder
+ * @version 1.4
+ * @since 1.4
+ */
+final class Parallel {
+
+    // Hide default constructor
+    private Parallel(){}
+
+    /**
+     * Run task(0) ... task(count - 1) in the pool and wait for all of them
+     * @param pool (ForkJoinPool) - Pool running the tasks
+     * @param count (int) - Number of tasks
+     * @param task (IntConsumer) - Task, given the index of the part to process
+     * @throws RuntimeException or Error thrown by the first failed task (in index order), once all of them are over.
+     *         The other tasks are not cancelled
+     */
+    static void runAll(ForkJoinPool pool, int count, IntConsumer task){
+        // the errors are kept by the tasks themselves: join would throw a copy made in the joining thread
+        var errors = new Throwable[count];
+        var tasks = new ArrayList<ForkJoinTask<?>>(count);
+        for (int k = 0; k < count; k++) {
+            int part = k;
+            tasks.add(ForkJoinTask.adapt(() -> {
+                try {
+                    task.accept(part);
+                } catch (RuntimeException | Error e) {
+                    errors[part] = e;
+                }
+            }));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> {
+            for (var forked : tasks) {
+                forked.fork();
+            }
+            for (var forked : tasks) {
+                forked.join();
+            }
+        }));
+        for (var error : errors) {
+            if (error instanceof Error e)
+                throw e;
+            if (error != null)
+                throw (RuntimeException) error;
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Batch converter of a directory tree: every ".png" file is encoded to ".qoi"
+ * and every ".qoi" file is decoded to ".png", at the same relative path in the output directory.
+ * <p>
+ * The files are converted by a fixed number of workers pulling the next file from a shared
+ * walk of the tree, so the memory used doesn't depend on the number of files.
+ * A file which cannot be converted is reported and skipped, the batch goes on.
+ * With an encode cache (see QOIEncodeCache), the PNG files whose content was already encoded are not encoded again.
+ * @apiNote Run with : java cs107.Main batch input_dir output_dir [threads] [virtual|platform] [cache_dir] [cache size in MB]
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIBatch {
+
+    /**
+     * Result of a batch
+     * @param files (long) - Number of converted files
+     * @param failures (List of String) - One message per file which could not be converted
+     * @param inputBytes (long) - Size of all the converted files
+     * @param outputBytes (long) - Size of all the produced files
+     * @param pngBytes (long) - Size of all the PNG files read or written
+     * @param qoiBytes (long) - Size of all the QOI files read or written
+     * @param nanos (long) - Duration of the batch
+     */
+    public record Report(long files, List<String> failures, long inputBytes, long outputBytes,
+                         long pngBytes, long qoiBytes, long nanos) {
+
+        /**
+         * @return (double) - Converted files per second
+         */
+        public double filesPerSecond(){
+            return files / (nanos / 1e9);
+        }
+
+        /**
+         * @return (double) - Megabytes of converted files per second
+         */
+        public double megabytesPerSecond(){
+            return inputBytes / 1e6 / (nanos / 1e9);
+        }
+
+        /**
+         * @return (double) - Size of the PNG files relative to the QOI files (see Main::ratio)
+         */
+        public double ratio(){
+            return Main.ratio(pngBytes, qoiBytes);
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%d files converted, %d failed in %.2f s : %.1f files/s, %.1f MB/s, ratio %.1f%%",
+                    files, failures.size(), nanos / 1e9, filesPerSecond(), megabytesPerSecond(), ratio());
+        }
+    }
+
+    // Counters shared by the workers
+    static final class Totals {
+        final LongAdder files = new LongAdder();
+        final LongAdder inputBytes = new LongAdder();
+        final LongAdder outputBytes = new LongAdder();
+        final LongAdder pngBytes = new LongAdder();
+        final LongAdder qoiBytes = new LongAdder();
+        final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+        // Count a converted file
+        void converted(Path file, long inputSize, long outputSize){
+            files.increment();
+            inputBytes.add(inputSize);
+            outputBytes.add(outputSize);
+            pngBytes.add(isPng(file) ? inputSize : outputSize);
+            qoiBytes.add(isPng(file) ? outputSize : inputSize);
+        }
+
+        // Record and print a file which could not be converted
+        void failed(Path file, Throwable error){
+            var failure = String.format("%s : %s", file, error.getMessage() == null ? error : error.getMessage().strip());
+            failures.add(failure);
+            System.err.println("FAILED " + failure);
+        }
+
+        Report report(long nanos){
+            return new Report(files.sum(), List.copyOf(failures), inputBytes.sum(),
+                    outputBytes.sum(), pngBytes.sum(), qoiBytes.sum(), nanos);
+        }
+    }
+
+    // Hide default constructor
+    private QOIBatch(){}
+
+    /**
+     * Entry point of the batch mode
+     * @param args (String[]) - input directory, output directory, optional number of workers
+     *             (number of processors by default), optional "virtual" to run the workers on virtual threads,
+     *             optional directory of the encode cache and its size in megabytes (1024 by default)
+     */
+    public static void main(String[] args){
+        if (args.length < 2) {
+            System.err.println("Usage : batch input_dir output_dir [threads] [virtual|platform] [cache_dir] [cache size in MB]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        boolean virtual = args.length > 3 && args[3].equals("virtual");
+        long cacheSize = args.length > 5 ? Long.parseLong(args[5]) : 1024;
+        var cache = args.length > 4 ? new QOIEncodeCache(Path.of(args[4]), cacheSize << 20, true) : null;
+        var report = convert(Path.of(args[0]), Path.of(args[1]), threads, virtual, cache);
+        System.out.println(report);
+        if (cache != null)
+            System.out.println(cache);
+    }
+
+    // ==================================================================================
+    // ================================= BATCH METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * Convert all the ".png" and ".qoi" files of a directory tree
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written, created if needed
+     * @param threads (int) - Number of files converted at the same time
+     * @param virtual (boolean) - Run the workers on virtual threads when the JVM supports them
+     * @return (Report) - Number of converted files, failures and throughput
+     * @throws AssertionError if input is not a directory or threads is not positive
+     * @throws RuntimeException if output is input or contains it
+     */
+    public static Report convert(Path input, Path output, int threads, boolean virtual){
+        return convert(input, output, threads, virtual, null);
+    }
+
+    /**
+     * Convert all the ".png" and ".qoi" files of a directory tree, reusing the encoded files of a cache
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written, created if needed
+     * @param threads (int) - Number of files converted at the same time
+     * @param virtual (boolean) - Run the workers on virtual threads when the JVM supports them
+     * @param cache (QOIEncodeCache) - Cache of the encoded PNG files, null to encode every file
+     * @return (Report) - Number of converted files, failures and throughput
+     * @throws AssertionError if input is not a directory or threads is not positive
+     * @throws RuntimeException if output is input or contains it
+     */
+    public static Report convert(Path input, Path output, int threads, boolean virtual, QOIEncodeCache cache){
+        assert input != null && output != null && Files.isDirectory(input);
+        assert threads > 0;
+
+        checkDirectories(input, output);
+
+        var totals = new Totals();
+        long start = System.nanoTime();
+        try (Stream<Path> walk = files(input, output, cache == null ? null : cache.directory())) {
+            var files = walk.iterator();
+            var executor = newExecutor(threads, virtual);
+            try {
+                var workers = new ArrayList<Future<?>>(threads);
+                for (int i = 0; i < threads; i++) {
+                    workers.add(executor.submit(() -> work(files, input, output, totals, cache)));
+                }
+                for (var worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Helper.fail("The batch was interrupted%n");
+            } catch (ExecutionException e) {
+                // the failures of the files are counted by the workers, only the walk and errors get here
+                if (e.getCause() instanceof UncheckedIOException)
+                    return Helper.fail("An error occurred while walking through : \"%s\"%n", input);
+                if (e.getCause() instanceof Error error)
+                    throw error;
+                return Helper.fail("An error occurred while converting the files of : \"%s\" : %s%n", input, e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", input);
+        }
+        return totals.report(System.nanoTime() - start);
+    }
+
+    // Convert files until the walk is over
+    private static void work(Iterator<Path> files, Path input, Path output, Totals totals, QOIEncodeCache cache){
+        while (true) {
+            Path file;
+            synchronized (files) {
+                if (!files.hasNext())
+                    return;
+                file = files.next();
+            }
+            try {
+                convert(file, destination(input, output, file), totals, cache);
+            } catch (RuntimeException | AssertionError e) {
+                totals.failed(file, e);
+            }
+        }
+    }
+
+    /**
+     * Convert one file, PNG to QOI or QOI to PNG depending on its extension
+     * @param file (Path) - File to convert
+     * @param destination (Path) - Where to write the converted file, its directory is created if needed
+     * @param totals (Totals) - Counters updated once the file is converted
+     */
+    static void convert(Path file, Path destination, Totals totals){
+        convert(file, destination, totals, null);
+    }
+
+    /**
+     * Convert one file, PNG to QOI or QOI to PNG depending on its extension
+     * @param file (Path) - File to convert
+     * @param destination (Path) - Where to write the converted file, its directory is created if needed
+     * @param totals (Totals) - Counters updated once the file is converted
+     * @param cache (QOIEncodeCache) - Cache of the encoded PNG files, null to encode the file
+     */
+    static void convert(Path file, Path destination, Totals totals, QOIEncodeCache cache){
+        try {
+            Files.createDirectories(destination.toAbsolutePath().getParent());
+            long inputSize = Files.size(file);
+            if (isPng(file) && cache != null) {
+                cache.encode(file, destination);
+            } else if (isPng(file)) {
+                var content = QOIEncoder.qoiFile(Helper.readImage(file.toString()));
+                Helper.write(destination, content);
+            } else {
+                // read rather than mapped : a batch would keep a mapping per file until they are garbage collected
+                Helper.writeImage(destination, QOIDecoder.decodeQoiFile(Helper.read(file.toString())));
+            }
+            totals.converted(file, inputSize, Files.size(destination));
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", destination);
+        }
+    }
+
+    // ==================================================================================
+
+    /**
+     * Executor of the workers
+     * @param threads (int) - Number of workers
+     * @param virtual (boolean) - Start a virtual thread per task when the JVM supports them (Java 21+),
+     *                platform threads otherwise
+     * @return (ExecutorService) - The executor
+     */
+    static ExecutorService newExecutor(int threads, boolean virtual){
+        if (virtual) {
+            try {
+                // looked up at run time, so that the program still compiles and runs on Java 17
+                var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                System.err.println("Virtual threads are not available, using platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Walk through the files to convert
+     * @param input (Path) - Directory containing the files to convert
+     * @param excluded (Path...) - Directories of the tree whose files are skipped (output, cache ...), null ones are ignored
+     * @return (Stream of Path) - The ".png" and ".qoi" files of the tree, to be closed
+     * @throws IOException if the directory cannot be read
+     */
+    static Stream<Path> files(Path input, Path... excluded) throws IOException {
+        var skipped = Arrays.stream(excluded).filter(Objects::nonNull).map(QOIBatch::absolute).toList();
+        return Files.walk(input).filter(Files::isRegularFile).filter(file -> target(file) != null)
+                .filter(file -> skipped.isEmpty() || skipped.stream().noneMatch(absolute(file)::startsWith));
+    }
+
+    /**
+     * Check that converting a tree cannot overwrite its own files : the output directory may be inside
+     * the input directory (its files are then skipped by the walk), but not the input directory itself nor above it
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written
+     * @throws RuntimeException if the output directory is the input directory or contains it
+     */
+    static void checkDirectories(Path input, Path output){
+        if (absolute(input).startsWith(absolute(output)))
+            Helper.fail("The output directory \"%s\" cannot be or contain the input directory \"%s\"%n", output, input);
+    }
+
+    // Absolute path without "." nor ".." parts, to compare two paths
+    private static Path absolute(Path path){
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Path of a converted file
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written
+     * @param file (Path) - File to convert, in the input directory
+     * @return (Path) - Same relative path in the output directory, with the other extension
+     */
+    static Path destination(Path input, Path output, Path file){
+        return output.resolve(input.relativize(file).resolveSibling(target(file)).toString());
+    }
+
+    // Name of the converted file, null if the file is neither a PNG nor a QOI file
+    static String target(Path file){
+        var name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0)
+            return null;
+        return switch (name.substring(dot).toLowerCase()) {
+            case ".png" -> name.substring(0, dot) + ".qoi";
+            case ".qoi" -> name.substring(0, dot) + ".png";
+            default -> null;
+        };
+    }
+
+    static boolean isPng(Path file){
+        return file.getFileName().toString().toLowerCase().endsWith(".png");
+    }
+
+}
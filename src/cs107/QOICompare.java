@@ -0,0 +1,285 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Regression comparison of two converted directory trees, for example the outputs of two versions of the encoder.
+ * <p>
+ * The ".qoi" and ".png" files at the same relative path in both trees are compared on a pool of workers.
+ * Files with the same bytes are identical. Otherwise each file is decoded on its own, row by row, into a
+ * 64 bits hash of its pixels (ArrayUtils::hash64), so the two images are never held in memory together.
+ * The report is a tab separated table, one line per file, with one of the statuses :
+ * <ul>
+ *     <li>IDENTICAL : the two files have the same bytes,</li>
+ *     <li>PIXELS_EQUAL : the bytes differ but the images have the same size, channels, color space and pixels,</li>
+ *     <li>MISMATCH : the images differ, or one of the files cannot be decoded,</li>
+ *     <li>MISSING : the file is only in one of the trees.</li>
+ * </ul>
+ * @apiNote Run with : java cs107.Main compare expected_dir actual_dir [threads] [report.tsv]
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOICompare {
+
+    /**
+     * Result of the comparison of two files
+     */
+    public enum Status {
+        IDENTICAL, PIXELS_EQUAL, MISMATCH, MISSING
+    }
+
+    /**
+     * Comparison of the files at one relative path
+     * @param file (String) - Relative path of the files
+     * @param status (Status) - Result of the comparison
+     * @param expected (String) - Fingerprint of the expected file (see fingerprint), "-" if not decoded
+     * @param actual (String) - Fingerprint of the actual file (see fingerprint), "-" if not decoded
+     */
+    public record Result(String file, Status status, String expected, String actual) {
+
+        @Override
+        public String toString(){
+            return String.join("\t", status.name(), file, expected, actual);
+        }
+    }
+
+    /**
+     * Result of the comparison of two trees
+     * @param results (List of Result) - One result per relative path, in the order of the paths
+     * @param nanos (long) - Duration of the comparison
+     */
+    public record Report(List<Result> results, long nanos) {
+
+        /**
+         * @param status (Status) - Result of a comparison
+         * @return (long) - Number of files with this result
+         */
+        public long count(Status status){
+            return results.stream().filter(result -> result.status() == status).count();
+        }
+
+        /**
+         * @return (boolean) - true if every file of one tree has the same pixels in the other tree
+         */
+        public boolean passed(){
+            return count(Status.MISMATCH) == 0 && count(Status.MISSING) == 0;
+        }
+
+        /**
+         * Write the table of the results
+         * @param output (PrintStream) - Where to write the table
+         */
+        public void write(PrintStream output){
+            output.println("status\tfile\texpected\tactual");
+            for (var result : results) {
+                output.println(result);
+            }
+            output.flush();
+        }
+
+        @Override
+        public String toString(){
+            Map<Status, Long> counts = new EnumMap<>(Status.class);
+            for (var status : Status.values()) {
+                counts.put(status, count(status));
+            }
+            return String.format("%d files compared in %.2f s : %s", results.size(), nanos / 1e9, counts);
+        }
+    }
+
+    // Size of the blocks of the files compared byte by byte
+    private static final int BLOCK = 1 << 16;
+
+    // Hide default constructor
+    private QOICompare(){}
+
+    /**
+     * Entry point of the compare mode, the summary is printed on the error stream
+     * and the program exits with 1 if some files are mismatched or missing
+     * @param args (String[]) - expected directory, actual directory, optional number of workers
+     *             (number of processors by default) and file of the report (the Terminal by default)
+     */
+    public static void main(String[] args){
+        if (args.length < 2) {
+            System.err.println("Usage : compare expected_dir actual_dir [threads] [report.tsv]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        var report = compare(Path.of(args[0]), Path.of(args[1]), threads);
+        if (args.length > 3) {
+            try (var output = new PrintStream(Files.newOutputStream(Path.of(args[3])), false, StandardCharsets.UTF_8)) {
+                report.write(output);
+            } catch (IOException e) {
+                Helper.fail("An error occurred while trying to write to : \"%s\"%n", args[3]);
+            }
+        } else {
+            report.write(System.out);
+        }
+        System.err.println(report);
+        if (!report.passed())
+            System.exit(1);
+    }
+
+    // ==================================================================================
+    // ================================ COMPARE METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Compare the ".qoi" and ".png" files of two directory trees
+     * @param expected (Path) - Directory of the reference files
+     * @param actual (Path) - Directory of the files to check
+     * @param threads (int) - Number of files compared at the same time
+     * @return (Report) - One result per relative path found in one of the trees
+     * @throws AssertionError if one of the paths is not a directory or threads is not positive
+     */
+    public static Report compare(Path expected, Path actual, int threads){
+        assert expected != null && actual != null && Files.isDirectory(expected) && Files.isDirectory(actual);
+        assert threads > 0;
+
+        long start = System.nanoTime();
+        var files = new TreeSet<String>();
+        relativePaths(expected, files);
+        relativePaths(actual, files);
+
+        var executor = QOIBatch.newExecutor(threads, false);
+        try {
+            var pending = new ArrayList<Future<Result>>(files.size());
+            for (var file : files) {
+                pending.add(executor.submit(() -> compare(file, expected.resolve(file), actual.resolve(file))));
+            }
+            var results = new ArrayList<Result>(files.size());
+            for (var result : pending) {
+                results.add(result.get());
+            }
+            return new Report(List.copyOf(results), System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Helper.fail("The comparison was interrupted%n");
+        } catch (ExecutionException e) {
+            return Helper.fail("An error occurred while comparing : \"%s\" and \"%s\"%n", expected, actual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Size, channels, color space and hash of the pixels of an image file, decoded row by row
+     * @param file (Path) - A ".qoi" or ".png" file
+     * @return (String) - "width x height : channels : color space : hash" of the image
+     */
+    static String fingerprint(Path file){
+        long hash = 0;
+        int width, height, channels, colorSpace;
+        if (QOIBatch.isPng(file)) {
+            var image = Helper.readImage(file.toString());
+            int[][] data = image.data();
+            width = data[0].length;
+            height = data.length;
+            channels = image.channels();
+            colorSpace = image.color_space();
+            for (int[] row : data) {
+                hash = ArrayUtils.hash64(row, 0, row.length, hash);
+            }
+        } else {
+            try (var channel = FileChannel.open(file); var decoder = new QOIStreamDecoder(channel)) {
+                width = decoder.width();
+                height = decoder.height();
+                channels = decoder.channels();
+                colorSpace = decoder.colorSpace();
+                int[] row;
+                while ((row = decoder.readRow()) != null) {
+                    hash = ArrayUtils.hash64(row, 0, row.length, hash);
+                }
+            } catch (IOException e) {
+                return Helper.fail("An error occurred while trying to read from : \"%s\"%n", file);
+            }
+        }
+        return String.format("%dx%d:%d:%d:%016x", width, height, channels, colorSpace, hash);
+    }
+
+    // ==================================================================================
+
+    // Compare the files of one relative path
+    private static Result compare(String file, Path expected, Path actual){
+        if (!Files.isRegularFile(expected) || !Files.isRegularFile(actual)) {
+            return new Result(file, Status.MISSING, Files.isRegularFile(expected) ? "present" : "-",
+                    Files.isRegularFile(actual) ? "present" : "-");
+        }
+        try {
+            if (sameBytes(expected, actual))
+                return new Result(file, Status.IDENTICAL, "-", "-");
+        } catch (IOException | RuntimeException e) {
+            var message = error(e);
+            return new Result(file, Status.MISMATCH, message, message);
+        }
+        var expectedPixels = decode(expected);
+        var actualPixels = decode(actual);
+        return new Result(file, expectedPixels.equals(actualPixels) && !expectedPixels.startsWith("error")
+                ? Status.PIXELS_EQUAL : Status.MISMATCH, expectedPixels, actualPixels);
+    }
+
+    // Fingerprint of a file, or the reason why it cannot be decoded
+    private static String decode(Path file){
+        try {
+            return fingerprint(file);
+        } catch (RuntimeException | AssertionError e) {
+            return error(e);
+        }
+    }
+
+    // Reason of a failure, on one line of the report
+    private static String error(Throwable e){
+        var message = e.getMessage() == null ? e.toString() : e.getMessage().strip();
+        return "error: " + message.replaceAll("\\s+", " ");
+    }
+
+    // Compare the bytes of two files block by block, through reused heap buffers rather than mappings
+    // which would stay alive until they are garbage collected
+    private static boolean sameBytes(Path expected, Path actual) throws IOException {
+        try (var first = FileChannel.open(expected); var second = FileChannel.open(actual)) {
+            if (first.size() != second.size())
+                return false;
+            var a = ByteBuffer.allocate(BLOCK);
+            var b = ByteBuffer.allocate(BLOCK);
+            while (true) {
+                int read = fill(first, a.clear());
+                if (fill(second, b.clear()) != read || a.flip().mismatch(b.flip()) >= 0)
+                    return false;
+                if (read < BLOCK)
+                    return true;
+            }
+        }
+    }
+
+    // Read until the buffer is full or the channel ends, the number of bytes read
+    private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // read until the block is complete or the file ends
+        }
+        return buffer.position();
+    }
+
+    // Add the relative paths of the ".qoi" and ".png" files of a tree
+    private static void relativePaths(Path root, TreeSet<String> files){
+        try (var walk = QOIBatch.files(root)) {
+            walk.forEach(file -> files.add(root.relativize(file).toString()));
+        } catch (IOException | UncheckedIOException e) {
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", root);
+        }
+    }
+
+}
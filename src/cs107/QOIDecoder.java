@@ -1,5 +1,7 @@
 package cs107;
 
+import java.nio.ByteBuffer;
+
 import static cs107.Helper.Image;
 
 /**
@@ -265,97 +267,72 @@ public final class QOIDecoder {
         assert width >= 0; // check if width is positive
         assert height >= 0; // check if height is positive
 
-        byte[][] hash = new byte[64][4]; // creating hash table
+        // the chunks are decoded by the table driven decoder, then split into channels
+        int[] pixels = new int[width * height];
+        decodeData(data, 0, data.length, pixels);
 
         byte[][] buffer = new byte[width * height][4]; // creating buffer with size height * width
-        byte[] previousPixel = QOISpecification.START_PIXEL; // defining previousPixel as constant START_PIXEl
-        int bufferCount = 0; //defining buffer count as 0
-
-
-        for (int i = 0; i < data.length; i++) { // for every byte in data
-
-            byte tag = (byte) (data[i] & 0b11_00_00_00); // mask first two bits of byte and store them as tag
-            boolean isRun = false; //restart boolean isRun
-
-            if (i != 0) { // if the byte is not the first byte, then the previous pixel equals pixel in buffer[bufferCount-1]
-                previousPixel = buffer[bufferCount-1];
-            }
-
-
-            if ((tag == QOISpecification.QOI_OP_RUN_TAG) && (data[i] != QOISpecification.QOI_OP_RGBA_TAG) &&
-                    (data[i] != QOISpecification.QOI_OP_RGB_TAG)) {
-                // if tag is equal to run, and byte isn't equal to rgb or rgba tag then increase bufferCount by
-                // the amount of repetitions of the pixel. Runs decodeQoiOpRun which stores this pixel in the buffer
-                // the amount of times returned by the function
-
-                bufferCount += (decodeQoiOpRun(buffer, previousPixel, data[i], bufferCount)+1);
-
-                isRun = true; // since we have gone through the run function this variable becomes true to avoid storing
-                // this pixel in the hash table.
-
-            } else if ((data[i] == QOISpecification.QOI_OP_RGBA_TAG) && (data[i] != QOISpecification.QOI_OP_RGB_TAG)) {
-                // if the byte equals the rgba tag and doesn't equal rgb then we store the next 4 bytes in the data
-                // as a pixel in the buffer, with every pixel being one channel.
-
-
-                byte[] rgba = new byte[4];
-                for (int j = 0; j < rgba.length; j++) {
-                    rgba[j] = data[i + j + 1];
-                }
-
-                buffer[bufferCount] = rgba;
-                bufferCount++;
-                i = i + 4; // increase i by 4 because we're skipping the 4 bytes that we already read
-
-            } else if ((data[i] != QOISpecification.QOI_OP_RGBA_TAG) && (data[i] == QOISpecification.QOI_OP_RGB_TAG)) {
-                // if the byte doesn't equal the rgba tag and equals rgb then we store the next 3 bytes in the data plus
-                // the alpha channel of the prev pixel as a pixel in the buffer, with every pixel being one channel.
-
-
-                byte[] rgb = new byte[4];
-                for (int j = 0; j < rgb.length-1; j++) {
-                    rgb[j] = data[i + j + 1];
-                }
-                rgb[3] = previousPixel[3];
-
-                buffer[bufferCount] = rgb;
-                bufferCount++;
-                i = i + 3; // increase i by 3 because we're skipping the 4 bytes that we already read
-
-
-            } else if (tag == QOISpecification.QOI_OP_DIFF_TAG) { // if byte has diff tag, call diff method, which
-                // stores the difference plus the previous pixel to obtain a new pixel
-
-                buffer[bufferCount] = decodeQoiOpDiff(previousPixel, data[i]);
-                bufferCount++;
-
-            } else if (tag == QOISpecification.QOI_OP_LUMA_TAG) { // if byte has luma tag, call the luma method
-
-                byte[] luma = new byte[2]; // create new array to store previous pixel and current pixel
-                luma[0] = data[i];
-                luma[1] = data[i+1];
-                buffer[bufferCount] = decodeQoiOpLuma(previousPixel, luma);
-                bufferCount++;
-                i++;
-
-            } else if (tag == QOISpecification.QOI_OP_INDEX_TAG) { // if byte has index tag, call index method,
-                // stores pixel from hash into buffer
-
-                byte index = (byte) (data[i] & 0b00_11_11_11);
-                buffer[bufferCount] = hash[index];
-                bufferCount++;
-
-
-            }
-            // store pixel in hash if the byte doesn't have a run tag (doesn't pass through run)
-            if (!isRun) {
-                hash[QOISpecification.hash(buffer[bufferCount-1])]= buffer[bufferCount-1];
-            }
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            buffer[i][QOISpecification.r] = (byte) (pixel >> 16);
+            buffer[i][QOISpecification.g] = (byte) (pixel >> 8);
+            buffer[i][QOISpecification.b] = (byte) pixel;
+            buffer[i][QOISpecification.a] = (byte) (pixel >>> 24);
         }
-        assert bufferCount == buffer.length;
         return buffer;
     }
 
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol straight into
+     * ARGB packed pixels (same layout as Helper.Image::data), row after row
+     *
+     * @param data   (byte[]) - Array containing the data to decode
+     * @param offset (int) - Index in data of the first chunk
+     * @param length (int) - Number of bytes of encoded data
+     * @param output (int[]) - Where to store the pixels, its length is width * height
+     * @throws AssertionError if one of the arrays is null, the bounds are invalid
+     *                        or the data doesn't contain exactly output.length pixels
+     */
+    public static void decodeData(byte[] data, int offset, int length, int[] output) {
+        assert data != null; // check if data is not null
+        assert output != null; // check if output is not null
+        assert offset >= 0 && length >= 0 && offset + length <= data.length; // check the bounds of the data
+
+        var event = new QOIEvents.Decode();
+        event.begin();
+        var input = ByteBuffer.wrap(data, offset, length);
+        int written = new QOIPixelDecoder().decode(input, output, 0, output.length);
+        assert written == output.length; // check that all the pixels were decoded
+        event.report(null, 0, 0, 4, written, length);
+    }
+
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol straight into
+     * flat bytes, pixel after pixel and channel after channel (RGBA or RGB)
+     *
+     * @param data     (byte[]) - Array containing the data to decode
+     * @param offset   (int) - Index in data of the first chunk
+     * @param length   (int) - Number of bytes of encoded data
+     * @param output   (byte[]) - Where to store the pixels, its length is width * height * channels
+     * @param channels (int) - QOISpecification.RGBA or QOISpecification.RGB
+     * @throws AssertionError if one of the arrays is null, the bounds are invalid
+     *                        or the data doesn't contain exactly output.length / channels pixels
+     */
+    public static void decodeData(byte[] data, int offset, int length, byte[] output, int channels) {
+        assert data != null; // check if data is not null
+        assert output != null; // check if output is not null
+        assert offset >= 0 && length >= 0 && offset + length <= data.length; // check the bounds of the data
+        assert (channels == QOISpecification.RGB || channels == QOISpecification.RGBA) && output.length % channels == 0;
+
+        var event = new QOIEvents.Decode();
+        event.begin();
+        var input = ByteBuffer.wrap(data, offset, length);
+        int pixels = output.length / channels;
+        int written = new QOIPixelDecoder().decode(input, output, 0, pixels, channels);
+        assert written == pixels; // check that all the pixels were decoded
+        event.report(null, 0, 0, channels, written, length);
+    }
+
     /**
      * Decode a file using the "Quite Ok Image" Protocol
      *
@@ -365,27 +342,126 @@ public final class QOIDecoder {
      */
     public static Image decodeQoiFile(byte[] content) {
         assert content != null; //assert content isn't null
+        return decodeQoiFile(ByteBuffer.wrap(content), null);
+    }
 
-        byte[][] partitionArray = ArrayUtils.partition(content, 14, content.length - 22, 8); //byte table partitionArray containing the partition of array content into smaller segments.
-        byte[] eof = partitionArray[2]; //end of file data equals partitionArray[2]
-        for (int i = 0; i <= 7; i++) {
-            assert eof[i] == QOISpecification.QOI_EOF[i]; //assert eof is equal to the expected eof
-        }
-
-        byte[] header = partitionArray[0]; //header equals first row of partitionArray
-        byte[] rawData = partitionArray[1]; //rawData equals second row of partition array
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol and record the read chunks
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @param stats   (QOIStats) - Where to record the chunks, null to not record them
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null
+     */
+    public static Image decodeQoiFile(byte[] content, QOIStats stats) {
+        assert content != null; //assert content isn't null
+        return decodeQoiFile(ByteBuffer.wrap(content), stats);
+    }
 
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, reading the bytes in place.
+     * Used with Helper::map, the file is decoded without being copied to the heap
+     *
+     * @param content (ByteBuffer) - Content of the file to decode, from its position to its limit
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file
+     */
+    public static Image decodeQoiFile(ByteBuffer content) {
+        return decodeQoiFile(content, null);
+    }
 
-        int[] decodeHeader = decodeHeader(header); //transforms encoded header into something readable by us
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, reading the bytes in place,
+     * and record the read chunks
+     *
+     * @param content (ByteBuffer) - Content of the file to decode, from its position to its limit
+     * @param stats   (QOIStats) - Where to record the chunks, null to not record them
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file
+     */
+    public static Image decodeQoiFile(ByteBuffer content, QOIStats stats) {
+        assert content != null; //assert content isn't null
+        var event = new QOIEvents.Decode();
+        event.begin();
+        int start = content.position(); //the content itself is never moved
+        int end = content.limit();
+        int[] decodeHeader = decodeFileHeader(content); //checks the EOF and reads the header
         int width = decodeHeader[0]; //width equals first element of header
         int height = decodeHeader[1]; //height equals second element of header
         byte numChannels = (byte) decodeHeader[2]; //the number of channels equals third element of header
         byte colorSpace = (byte) decodeHeader[3]; //the color space equals fourth element of header
 
-        byte[][] data = decodeData(rawData, width, height); //making a list of byte pixels
-        int[][] decodedPixels = ArrayUtils.channelsToImage(data, height, width); //making a table of int pixels
+        //the pixels are decoded straight into the rows of the image, without intermediate buffers
+        var input = chunks(content);
+        var decoder = new QOIPixelDecoder();
+        decoder.setStats(stats);
+        int[][] decodedPixels = new int[height][width];
+        for (int[] row : decodedPixels) {
+            int written = decoder.decode(input, row, 0, width);
+            assert written == width; //assert the data contains enough pixels
+        }
+        event.report(null, width, height, numChannels, end - start);
         return Helper.generateImage(decodedPixels, numChannels, colorSpace); //generating the image using the table of int pixels, the number of channels and the color space
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol into one array of pixels
+     *
+     * @param content (byte[]) - Content of the file to decode
+     * @return (FlatImage) - Decoded image
+     * @throws AssertionError if content is null or is not a valid "Quite Ok Image" file
+     */
+    public static FlatImage decodeFlatImage(byte[] content) {
+        assert content != null; //assert content isn't null
+        return decodeFlatImage(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol into one array of pixels, reading the bytes in place
+     *
+     * @param content (ByteBuffer) - Content of the file to decode, from its position to its limit
+     * @return (FlatImage) - Decoded image, the same pixels as FlatImage.of(decodeQoiFile(content))
+     * @throws AssertionError if content is null, is not a valid "Quite Ok Image" file
+     *                        or has more pixels than an array can hold
+     */
+    public static FlatImage decodeFlatImage(ByteBuffer content) {
+        assert content != null; //assert content isn't null
+        var event = new QOIEvents.Decode();
+        event.begin();
+        int[] header = decodeFileHeader(content);
+        int width = header[0];
+        int height = header[1];
+        assert (long) width * height <= Integer.MAX_VALUE; //assert the pixels fit in one array
+
+        //all the rows are decoded in one call, the decoder goes from one row to the next by itself
+        int[] pixels = new int[width * height];
+        int written = new QOIPixelDecoder().decode(chunks(content), pixels, 0, pixels.length);
+        assert written == pixels.length; //assert the data contains enough pixels
+        event.report(null, width, height, header[2], content.remaining());
+        return new FlatImage(pixels, width, height, (byte) header[2], (byte) header[3]);
+    }
+
+    // Check the size and the EOF of a file, and decode its header
+    private static int[] decodeFileHeader(ByteBuffer content) {
+        int start = content.position();
+        int end = content.limit();
+        assert end - start >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+
+        int eofStart = end - QOISpecification.QOI_EOF.length; //the eof is checked in place
+        for (int i = 0; i <= 7; i++) {
+            assert content.get(eofStart + i) == QOISpecification.QOI_EOF[i]; //assert eof is equal to the expected eof
+        }
+
+        byte[] header = new byte[QOISpecification.HEADER_SIZE]; //header equals the first 14 bytes
+        content.get(start, header);
+        return decodeHeader(header); //transforms encoded header into something readable by us
+    }
+
+    // Chunks of a file, between the header and the EOF, without moving the content
+    private static ByteBuffer chunks(ByteBuffer content) {
+        return content.duplicate().position(content.position() + QOISpecification.HEADER_SIZE)
+                .limit(content.limit() - QOISpecification.QOI_EOF.length);
+    }
+
+}
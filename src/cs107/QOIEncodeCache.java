@@ -0,0 +1,297 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Content-addressed store of encoded "Quite Ok Image" files, to skip the encoding of duplicate inputs.
+ * <p>
+ * An entry is found by the SHA-256 digest of the bytes of the input file, so a file with the same content
+ * as an already encoded file is never decoded nor encoded again : its entry is hard linked to the destination,
+ * or copied when the file system cannot link.
+ * The entries are evicted in least recently used order once they take more than the size cap.
+ * The order of use is kept in memory, when the store is opened again the entries are ordered by
+ * the time they were stored.
+ * <p>
+ * A hard linked destination shares its content with the entry : it must be replaced, not modified in place,
+ * as Helper::write and Helper::writeImage do. The store is safe from the other tools writing to the same
+ * output directory as long as they write through these methods.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIEncodeCache {
+
+    /**
+     * Age after which a temporary file of the store is taken as left by an interrupted write,
+     * and deleted when the store is opened. Younger ones may still be written by another process
+     */
+    public static final long STALE_TEMPORARY_MILLIS = 60 * 60 * 1000L;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final boolean link;
+    // key -> size of the entry, in access order, protected by the lock of the map
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Open a store, created if needed, and index the entries already in it
+     * @param directory (Path) - Directory of the entries
+     * @param maxBytes (long) - Largest number of bytes of entries kept in the store
+     * @param link (boolean) - Hard link the entries to the destinations, copy them otherwise
+     * @throws AssertionError if the directory is null or maxBytes is negative
+     */
+    public QOIEncodeCache(Path directory, long maxBytes, boolean link){
+        assert directory != null && maxBytes >= 0;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.link = link;
+        open();
+    }
+
+    // ==================================================================================
+    // ================================== CACHE METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Encode an image file to a "Quite Ok Image" file, or reuse the entry of a file with the same content
+     * @param file (Path) - Image to encode (PNG ...)
+     * @param destination (Path) - Where to write the "Quite Ok Image" file, replaced if it exists
+     * @return (boolean) - true if the entry was reused, false if the image was encoded
+     * @throws AssertionError if one of the paths is null
+     */
+    public boolean encode(Path file, Path destination){
+        assert file != null && destination != null;
+        byte[] content = Helper.read(file.toString());
+        var key = key(content);
+        var entry = entry(key);
+        if (contains(key) && place(key, entry, destination)) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        byte[] qoi = QOIEncoder.qoiFile(Helper.readImage(new ByteArrayInputStream(content)));
+        // two threads encoding the same content both store it, the second replaces the first.
+        // Helper.write replaces the destination, which may still be linked to another entry
+        if (!store(key, entry, qoi) || !place(key, entry, destination))
+            Helper.write(destination, qoi);
+        return false;
+    }
+
+    /**
+     * Remove all the entries
+     */
+    public void clear(){
+        List<String> keys;
+        synchronized (entries) {
+            keys = new ArrayList<>(entries.keySet());
+            entries.clear();
+            bytes = 0;
+        }
+        delete(keys);
+    }
+
+    // ==================================================================================
+    // ================================= QUERY METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * @return (Path) - Directory of the entries
+     */
+    public Path directory(){
+        return directory;
+    }
+
+    /**
+     * @return (long) - Number of files whose entry was reused
+     */
+    public long hits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return (long) - Number of files which were encoded
+     */
+    public long misses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return (long) - Number of entries removed to stay within the size cap
+     */
+    public long evictions(){
+        return evictions.sum();
+    }
+
+    /**
+     * @return (int) - Number of entries in the store
+     */
+    public int size(){
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return (long) - Number of bytes of the entries in the store
+     */
+    public long bytes(){
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return String.format("cache entries=%d bytes=%d/%d hits=%d misses=%d evictions=%d",
+                size(), bytes(), maxBytes, hits(), misses(), evictions());
+    }
+
+    // ==================================================================================
+
+    // Index the entries of the directory, oldest first, and remove the stale files of interrupted stores
+    private void open(){
+        try {
+            Files.createDirectories(directory);
+            List<Path> files;
+            try (var walk = Files.walk(directory)) {
+                files = walk.filter(Files::isRegularFile).toList();
+            }
+            var stored = new ArrayList<Path>();
+            for (var file : files) {
+                if (file.getFileName().toString().endsWith(".qoi"))
+                    stored.add(file);
+                else if (file.getFileName().toString().endsWith(".tmp")
+                        && modified(file) < System.currentTimeMillis() - STALE_TEMPORARY_MILLIS)
+                    Files.deleteIfExists(file);
+            }
+            stored.sort(Comparator.comparing(QOIEncodeCache::modified));
+            for (var file : stored) {
+                var name = file.getFileName().toString();
+                add(name.substring(0, name.length() - ".qoi".length()), Files.size(file));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            Helper.fail("An error occurred while trying to open the cache : \"%s\"%n", directory);
+        }
+    }
+
+    private boolean contains(String key){
+        synchronized (entries) {
+            return entries.get(key) != null; // moves the entry to the end of the access order
+        }
+    }
+
+    // Write an entry atomically, so that no other thread links a partial file, false if it is over the cap
+    private boolean store(String key, Path entry, byte[] qoi){
+        if (qoi.length > maxBytes)
+            return false;
+        try {
+            Files.createDirectories(entry.getParent());
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", entry);
+        }
+        Helper.write(entry, qoi); // written to a temporary file, then moved over the entry
+
+        add(key, qoi.length);
+        return true;
+    }
+
+    // Hard link or copy an entry to the destination, false if the entry was evicted meanwhile
+    private boolean place(String key, Path entry, Path destination){
+        try {
+            if (link) {
+                try {
+                    Files.deleteIfExists(destination);
+                    Files.createLink(destination, entry);
+                    return true;
+                } catch (NoSuchFileException e) {
+                    throw e;
+                } catch (UnsupportedOperationException | IOException e) {
+                    // another file system, or links not supported : copy
+                }
+            }
+            Files.copy(entry, destination, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (NoSuchFileException e) {
+            synchronized (entries) {
+                var size = entries.remove(key);
+                if (size != null)
+                    bytes -= size;
+            }
+            return false;
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to write to : \"%s\"%n", destination);
+        }
+    }
+
+    // Add an entry to the index, and evict the least recently used entries over the cap
+    private void add(String key, long size){
+        var evicted = new ArrayList<String>();
+        synchronized (entries) {
+            var previous = entries.put(key, size);
+            if (previous != null)
+                bytes -= previous;
+            bytes += size;
+            var iterator = entries.entrySet().iterator();
+            while (bytes > maxBytes) {
+                var oldest = iterator.next();
+                iterator.remove();
+                bytes -= oldest.getValue();
+                evicted.add(oldest.getKey());
+                evictions.increment();
+            }
+        }
+        delete(evicted);
+    }
+
+    // Delete the files of removed entries, the hard linked destinations keep their content
+    private void delete(List<String> keys){
+        for (var key : keys) {
+            try {
+                Files.deleteIfExists(entry(key));
+            } catch (IOException e) {
+                System.err.printf("Cannot delete \"%s\" : %s%n", entry(key), e.getMessage());
+            }
+        }
+    }
+
+    // Name of the entry of a content : a strong digest, so that a crafted input cannot collide with another one
+    private static String key(byte[] content){
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            return Helper.fail("An error occurred while trying to hash the content : \"%s\"%n", e.getMessage());
+        }
+    }
+
+    // Path of an entry, spread over 256 sub-directories
+    private Path entry(String key){
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".qoi");
+    }
+
+    private static long modified(Path file){
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+}
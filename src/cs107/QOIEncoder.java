@@ -1,6 +1,7 @@
 package cs107;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import static cs107.QOISpecification.*;
 
@@ -37,14 +38,31 @@ public final class QOIEncoder {
         assert ((image.channels() == QOISpecification.RGB) || (image.channels() == QOISpecification.RGBA)); //assert that the number of channels encoding the image does not differ from the values of the constants QOISpecification.RGB and QOISpecification.RGBA
         assert (image.color_space() == QOISpecification.sRGB) || (image.color_space() == QOISpecification.ALL); //assert that the value encoding the color space does not differ from the values QOISpecification.sRGB and QOISpecification.ALL
 
+        int height = (image.data()).length; //height of image
+        int width = (image.data())[0].length; //width of image
+        return qoiHeader(width, height, image.channels(), image.color_space());
+    }
+
+    /**
+     * Generate a "Quite Ok Image" header using the following parameters
+     *
+     * @param width      (int) - Width of the image
+     * @param height     (int) - Height of the image
+     * @param channels   (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @return (byte[]) - Corresponding "Quite Ok Image" Header
+     * @throws AssertionError if the colorspace or the number of channels is corrupted
+     */
+    public static byte[] qoiHeader(int width, int height, byte channels, byte colorSpace) {
+        assert (channels == QOISpecification.RGB) || (channels == QOISpecification.RGBA); //assert that the number of channels is RGB or RGBA
+        assert (colorSpace == QOISpecification.sRGB) || (colorSpace == QOISpecification.ALL); //assert that the color space is sRGB or ALL
+
         byte[] header = new byte[14]; //array that is going to contain the header
         byte[] magicNum = QOISpecification.QOI_MAGIC; //array containing the magic number
         for (int i = 0; i < 4; i++) {
             header[i] = magicNum[i]; //adding the magic number to the header array in the first 4 bytes
         }
 
-        int height = (image.data()).length; //height of image
-        int width = (image.data())[0].length; //width of image
         byte[] byteHeight = ArrayUtils.fromInt(height); //4 byte array containing height
         byte[] byteWidth = ArrayUtils.fromInt(width); //4 byte array containing width
 
@@ -55,8 +73,8 @@ public final class QOIEncoder {
             header[i] = byteHeight[i - 8]; //adding the height of the image to the header array to the next 4 bytes
         }
 
-        header[12] = image.channels(); //adding the number of channels that the image has to the next byte
-        header[13] = image.color_space(); //adding the color-space of the channels that the image has to the next byte
+        header[12] = channels; //adding the number of channels that the image has to the next byte
+        header[13] = colorSpace; //adding the color-space of the channels that the image has to the next byte
 
         return header;
     }
@@ -210,6 +228,8 @@ public final class QOIEncoder {
      * @return (byte[]) - "Quite Ok Image" representation of the image
      */
     public static byte[] encodeData(byte[][] image) {
+        var event = new QOIEvents.Encode();
+        event.begin();
 
         assert image != null;
         //assert picture != null DON'T KNOW WHAT PICTURE IS
@@ -340,9 +360,51 @@ public final class QOIEncoder {
             encodeData[z] = encodedata.get(z);
         }
         encodedata.clear();
+        event.report(null, 0, 0, 4, image.length, encodeData.length);
         return encodeData;
     }
 
+    /**
+     * Encode the given ARGB packed pixels using the "Quite Ok Image" Protocol
+     * without allocating anything per pixel
+     *
+     * @param pixels   (int[]) - ARGB packed pixels (same layout as Helper.Image::data), row after row
+     * @param output   (byte[]) - Array where to write the encoding,
+     *                 needs QOIPixelEncoder.maxEncodedSize(pixels.length) free bytes
+     * @param position (int) - Index in output where to start writing
+     * @return (int) - Index in output following the last written byte
+     * @throws AssertionError if one of the arrays is null or output is too small
+     * @apiNote The written bytes are the same as encodeData(byte[][]) on the RGBA channels of the pixels
+     */
+    public static int encodeData(int[] pixels, byte[] output, int position) {
+        assert pixels != null;
+        assert output != null;
+        assert position >= 0 && position + QOIPixelEncoder.maxEncodedSize(pixels.length) <= output.length;
+
+        var event = new QOIEvents.Encode();
+        event.begin();
+        var encoder = new QOIPixelEncoder();
+        int end = encoder.encode(pixels, 0, pixels.length, output, position);
+        end = encoder.finish(output, end);
+        event.report(null, 0, 0, 4, pixels.length, end - position);
+        return end;
+    }
+
+    /**
+     * Encode the given ARGB packed pixels using the "Quite Ok Image" Protocol
+     *
+     * @param pixels (int[]) - ARGB packed pixels (same layout as Helper.Image::data), row after row
+     * @return (byte[]) - "Quite Ok Image" representation of the pixels
+     * @throws AssertionError if pixels is null
+     */
+    public static byte[] encodeData(int[] pixels) {
+        assert pixels != null;
+
+        byte[] output = new byte[QOIPixelEncoder.maxEncodedSize(pixels.length)];
+        int length = encodeData(pixels, output, 0);
+        return Arrays.copyOf(output, length);
+    }
+
     /**
      * Creates the representation in memory of the "Quite Ok Image" file.
      *
@@ -353,16 +415,72 @@ public final class QOIEncoder {
      * TO CREATE THE FILE, YOU'LL NEED TO CALL Helper::write
      */
     public static byte[] qoiFile(Helper.Image image) {
+        return qoiFile(image, null);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file
+     * and records the written chunks.
+     *
+     * @param image (Helper.Image) - Image to encode
+     * @param stats (QOIStats) - Where to record the chunks, null to not record them
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFile(Helper.Image image, QOIStats stats) {
         assert image != null; //assert image is not null
+        var event = new QOIEvents.Encode();
+        event.begin();
 
         byte[] header = qoiHeader(image);
-        byte[][] imageToChannels = ArrayUtils.imageToChannels(image.data());
-        byte[] encodeData = encodeData(imageToChannels);
-        byte[] eof = QOISpecification.QOI_EOF;
+        int[][] data = image.data();
+        int pixels = data.length * data[0].length;
+
+        // header, data and EOF are written in place in one array, which is trimmed at the end
+        byte[] qoiFile = new byte[HEADER_SIZE + QOIPixelEncoder.maxEncodedSize(pixels) + QOI_EOF.length];
+        System.arraycopy(header, 0, qoiFile, 0, HEADER_SIZE);
+
+        var encoder = new QOIPixelEncoder();
+        encoder.setStats(stats);
+        int position = HEADER_SIZE;
+        for (int[] row : data) { //rows are encoded one after the other, the encoder state carries over
+            position = encoder.encode(row, 0, row.length, qoiFile, position);
+        }
+        position = encoder.finish(qoiFile, position);
 
-        byte[] qoiFile = ArrayUtils.concat(header, encodeData, eof);
+        System.arraycopy(QOI_EOF, 0, qoiFile, position, QOI_EOF.length);
+        event.report(null, data[0].length, data.length, image.channels(), position + QOI_EOF.length);
+        return Arrays.copyOf(qoiFile, position + QOI_EOF.length);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file of a flat image.
+     * The rows are encoded in place from the backing array of the image
+     *
+     * @param image (FlatImage) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image,
+     * the same as qoiFile(image.toImage())
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFile(FlatImage image) {
+        assert image != null; //assert image is not null
+        var event = new QOIEvents.Encode();
+        event.begin();
+
+        byte[] header = qoiHeader(image.width(), image.height(), image.channels(), image.colorSpace());
+        byte[] qoiFile = new byte[HEADER_SIZE + QOIPixelEncoder.maxEncodedSize(image.width() * image.height()) + QOI_EOF.length];
+        System.arraycopy(header, 0, qoiFile, 0, HEADER_SIZE);
+
+        var encoder = new QOIPixelEncoder();
+        int position = HEADER_SIZE;
+        for (int y = 0; y < image.height(); y++) { //the rows are read where they are, whatever the stride
+            position = encoder.encode(image.pixels(), image.rowStart(y), image.width(), qoiFile, position);
+        }
+        position = encoder.finish(qoiFile, position);
 
-        return qoiFile;
+        System.arraycopy(QOI_EOF, 0, qoiFile, position, QOI_EOF.length);
+        event.report(null, image.width(), image.height(), image.channels(), position + QOI_EOF.length);
+        return Arrays.copyOf(qoiFile, position + QOI_EOF.length);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package cs107;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted around each stage of a conversion.
+ * <p>
+ * Every event records the duration of the stage, and what is known at this stage
+ * among: path of the file, width, height and channels of the image, number of pixels and bytes.
+ * The events are enabled by default and can be switched off or filtered by duration with the
+ * standard JFR settings, for example : -XX:StartFlightRecording:cs107.Encode#threshold=10ms
+ * <p>
+ * Usage, the stage is timed from begin to report :
+ * <pre>
+ *     var event = new QOIEvents.Encode();
+ *     event.begin();
+ *     ...
+ *     event.report(null, width, height, channels, bytes);
+ * </pre>
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIEvents {
+
+    // Hide default constructor
+    private QOIEvents(){}
+
+    /**
+     * Fields shared by all the stages of a conversion
+     */
+    @Category({"QOI"})
+    @StackTrace(false)
+    public abstract static class StageEvent extends Event {
+
+        @Label("Path")
+        String path;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Channels")
+        int channels;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /**
+         * End the stage and commit the event if it is enabled and above the threshold
+         * @param path (String) - Path of the file, null if there is none
+         * @param width (int) - Width of the image, 0 if it is unknown
+         * @param height (int) - Height of the image, 0 if it is unknown
+         * @param channels (int) - Number of channels of the image, 0 if it is unknown
+         * @param bytes (long) - Number of bytes read, written or produced
+         */
+        public void report(String path, int width, int height, int channels, long bytes){
+            report(path, width, height, channels, (long) width * height, bytes);
+        }
+
+        /**
+         * End the stage and commit the event if it is enabled and above the threshold
+         * @param path (String) - Path of the file, null if there is none
+         * @param width (int) - Width of the image, 0 if it is unknown
+         * @param height (int) - Height of the image, 0 if it is unknown
+         * @param channels (int) - Number of channels of the image, 0 if it is unknown
+         * @param pixels (long) - Number of pixels processed
+         * @param bytes (long) - Number of bytes read, written or produced
+         */
+        public void report(String path, int width, int height, int channels, long pixels, long bytes){
+            end();
+            if (shouldCommit()) {
+                this.path = path;
+                this.width = width;
+                this.height = height;
+                this.channels = channels;
+                this.pixels = pixels;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    // ==================================================================================
+    // ===================================== STAGES =====================================
+    // ==================================================================================
+
+    /**
+     * Helper::readImage, bytes is the size of the image file
+     */
+    @Name("cs107.ReadImage")
+    @Label("Read Image")
+    @Description("Read and decode a PNG (or other ImageIO format) file")
+    public static final class ReadImage extends StageEvent {}
+
+    /**
+     * Helper::writeImage, bytes is the size of the written PNG
+     */
+    @Name("cs107.WriteImage")
+    @Label("Write Image")
+    @Description("Encode and write an image as PNG")
+    public static final class WriteImage extends StageEvent {}
+
+    /**
+     * Helper::read and Helper::map, bytes is the size of the file
+     */
+    @Name("cs107.Read")
+    @Label("Read File")
+    @Description("Read or map a binary file")
+    public static final class Read extends StageEvent {}
+
+    /**
+     * Helper::write, bytes is the size of the file
+     */
+    @Name("cs107.Write")
+    @Label("Write File")
+    @Description("Write a binary file")
+    public static final class Write extends StageEvent {}
+
+    /**
+     * ArrayUtils::imageToChannels, bytes is the size of the channels
+     */
+    @Name("cs107.Flatten")
+    @Label("Image To Channels")
+    @Description("Split the pixels of an image into RGBA channels")
+    public static final class Flatten extends StageEvent {}
+
+    /**
+     * ArrayUtils::channelsToImage, bytes is the size of the channels
+     */
+    @Name("cs107.Unflatten")
+    @Label("Channels To Image")
+    @Description("Pack RGBA channels into the pixels of an image")
+    public static final class Unflatten extends StageEvent {}
+
+    /**
+     * ArrayUtils::concat, bytes is the size of the result
+     */
+    @Name("cs107.Concat")
+    @Label("Concat")
+    @Description("Concatenate arrays of bytes")
+    public static final class Concat extends StageEvent {}
+
+    /**
+     * QOIEncoder::encodeData and QOIEncoder::qoiFile, bytes is the size of the encoding
+     */
+    @Name("cs107.Encode")
+    @Label("QOI Encode")
+    @Description("Encode pixels using the \"Quite Ok Image\" Protocol")
+    public static final class Encode extends StageEvent {}
+
+    /**
+     * QOIDecoder::decodeData and QOIDecoder::decodeQoiFile, bytes is the size of the encoding
+     */
+    @Name("cs107.Decode")
+    @Label("QOI Decode")
+    @Description("Decode pixels using the \"Quite Ok Image\" Protocol")
+    public static final class Decode extends StageEvent {}
+
+}
@@ -0,0 +1,223 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory-bounded cache of decoded "Quite Ok Image" files.
+ * <p>
+ * An entry is found by the canonical path of the file, and is only used if the modification time
+ * and the size of the file did not change since it was decoded, otherwise the file is decoded again.
+ * The entries are evicted in least recently used order once the pixels of all the entries
+ * take more than the byte budget. Threads asking for the same file at the same time wait for
+ * one decoding instead of decoding it each.
+ * <p>
+ * The images are shared between all the callers and must not be modified.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIImageCache {
+
+    // Version of a file: the entry is outdated when one of them changes
+    private record Key(String path, long modified, long size){}
+
+    private record Entry(Key key, Helper.Image image, long bytes){}
+
+    private final long budget;
+    // access order, protected by the lock of the map
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private final Map<Key, CompletableFuture<Helper.Image>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create an empty cache
+     * @param budget (long) - Largest number of bytes of pixels kept in the cache
+     * @throws AssertionError if the budget is negative
+     */
+    public QOIImageCache(long budget){
+        assert budget >= 0;
+        this.budget = budget;
+    }
+
+    // ==================================================================================
+    // ================================== CACHE METHODS =================================
+    // ==================================================================================
+
+    /**
+     * Decoded image of a "Quite Ok Image" file, from the cache if the file did not change
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (Helper.Image) - The decoded image, shared, not to be modified
+     */
+    public Helper.Image get(String path){
+        assert path != null;
+        var key = key(path);
+        var cached = cached(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        var load = new CompletableFuture<Helper.Image>();
+        var running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            return await(running); // another thread is decoding this version of the file
+        }
+        try {
+            // the decoding of another thread may have ended between the lookup and putIfAbsent
+            var image = cached(key);
+            if (image != null) {
+                load.complete(image);
+                return image;
+            }
+            loads.increment();
+            image = QOIDecoder.decodeQoiFile(Helper.map(key.path()));
+            put(new Entry(key, image, weight(image)));
+            load.complete(image);
+            return image;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    /**
+     * Remove all the entries
+     */
+    public void clear(){
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    // ==================================================================================
+    // ================================= QUERY METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * @return (long) - Number of calls to get answered from the cache
+     */
+    public long hits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return (long) - Number of calls to get not found in the cache
+     */
+    public long misses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return (long) - Number of decoded files, misses waiting for the same decoding count once
+     */
+    public long loads(){
+        return loads.sum();
+    }
+
+    /**
+     * @return (long) - Number of entries removed to stay within the budget
+     */
+    public long evictions(){
+        return evictions.sum();
+    }
+
+    /**
+     * @return (int) - Number of entries in the cache
+     */
+    public int size(){
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return (long) - Number of bytes of pixels kept in the cache
+     */
+    public long bytes(){
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    @Override
+    public String toString(){
+        return String.format("entries=%d bytes=%d/%d hits=%d misses=%d loads=%d evictions=%d",
+                size(), bytes(), budget, hits(), misses(), loads(), evictions());
+    }
+
+    // ==================================================================================
+
+    // Add an entry, replacing the previous version of the file, and evict the oldest entries over the budget
+    private void put(Entry entry){
+        if (entry.bytes() > budget)
+            return;
+        synchronized (entries) {
+            var previous = entries.put(entry.key().path(), entry);
+            if (previous != null)
+                bytes -= previous.bytes();
+            bytes += entry.bytes();
+            var iterator = entries.values().iterator();
+            while (bytes > budget) {
+                var oldest = iterator.next();
+                iterator.remove();
+                bytes -= oldest.bytes();
+                evictions.increment();
+            }
+        }
+    }
+
+    // Image of the entry of this version of the file, null if there is none
+    private Helper.Image cached(Key key){
+        synchronized (entries) {
+            var entry = entries.get(key.path());
+            return entry != null && entry.key().equals(key) ? entry.image() : null;
+        }
+    }
+
+    // Wait for the decoding of another thread
+    private static Helper.Image await(CompletableFuture<Helper.Image> load){
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+            if (e.getCause() instanceof Error cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    // Current version of a file
+    private static Key key(String path){
+        try {
+            var file = Path.of(path).toRealPath();
+            return new Key(file.toString(), Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS), Files.size(file));
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    // Bytes used by the pixels of an image: one array of ints per row
+    private static long weight(Helper.Image image){
+        int[][] data = image.data();
+        return (long) data.length * (16 + 4L * data[0].length) + 16;
+    }
+
+}
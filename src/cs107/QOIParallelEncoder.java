@@ -0,0 +1,209 @@
+package cs107;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static cs107.QOISpecification.*;
+
+/**
+ * Multi-threaded "Quite Ok Image" encoder producing exactly the same bytes as QOIEncoder::qoiFile.
+ * <p>
+ * The image is split into horizontal stripes. A pixel is part of a run if and only if it is equal
+ * to the pixel before it, so every other pixel is stored in the index at the slot given by its hash.
+ * This only depends on the pixels, which gives the encoder state at the start of each stripe:
+ * <ul>
+ *     <li>the previous pixel is the last pixel of the stripe before,</li>
+ *     <li>each slot of the index holds the last non-run pixel hashed to it in the stripes before.</li>
+ * </ul>
+ * A first parallel pass computes, for each stripe, the last pixel written to each slot and the
+ * number of leading pixels that continue the run of the stripe before. The index at each boundary is
+ * the merge of the tables of the stripes before. A second parallel pass encodes each stripe after
+ * its leading run, without writing its trailing run. The stripes are then stitched together and
+ * the runs which cross the boundaries are written as the serial encoder would have written them.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIParallelEncoder {
+
+    // Hide default constructor
+    private QOIParallelEncoder(){}
+
+    // Pixels and index writes of one stripe of rows
+    private static final class Stripe {
+        final int firstRow;
+        final int lastRow; // exclusive
+        final int[] table = new int[64]; // last non-run pixel written to each slot
+        long written = 0L; // bit i is set if slot i of the table is used
+        long leadingRun = 0L; // number of leading pixels equal to the last pixel of the stripe before
+        byte[] data = new byte[0]; // encoding of the pixels after the leading run
+        int length = 0;
+        int trailingRun = 0; // pixels of the last run, not written in data
+
+        Stripe(int firstRow, int lastRow){
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file using all the threads of the pool
+     * @param image (Helper.Image) - Image to encode
+     * @param pool (ForkJoinPool) - Pool running the encoding
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image, same as QOIEncoder::qoiFile
+     * @throws AssertionError if the image or the pool is null
+     */
+    public static byte[] qoiFile(Helper.Image image, ForkJoinPool pool){
+        assert image != null && pool != null;
+        int stripes = Math.min(image.data().length, pool.getParallelism() * 4);
+        return qoiFile(image, pool, stripes);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file using the common pool
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image, same as QOIEncoder::qoiFile
+     */
+    public static byte[] qoiFile(Helper.Image image){
+        return qoiFile(image, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file using the given number of stripes
+     * @param image (Helper.Image) - Image to encode
+     * @param pool (ForkJoinPool) - Pool running the encoding
+     * @param stripes (int) - Number of stripes the image is split into, between 1 and the height of the image
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image, same as QOIEncoder::qoiFile
+     * @throws AssertionError if the image or the pool is null or the number of stripes is invalid
+     */
+    public static byte[] qoiFile(Helper.Image image, ForkJoinPool pool, int stripes){
+        assert image != null && pool != null;
+        int[][] rows = image.data();
+        assert stripes > 0 && stripes <= rows.length;
+
+        var parts = new Stripe[stripes];
+        for (int k = 0; k < stripes; k++) {
+            parts[k] = new Stripe((int) ((long) rows.length * k / stripes), (int) ((long) rows.length * (k + 1) / stripes));
+        }
+
+        Parallel.runAll(pool, stripes, k -> scan(rows, parts[k]));
+
+        // index at the start of each stripe: merge of the tables of the stripes before
+        var indexes = new int[stripes][];
+        var index = new int[64];
+        for (int k = 0; k < stripes; k++) {
+            indexes[k] = index.clone();
+            for (int slot = 0; slot < 64; slot++) {
+                if ((parts[k].written & 1L << slot) != 0) {
+                    index[slot] = parts[k].table[slot];
+                }
+            }
+        }
+
+        Parallel.runAll(pool, stripes, k -> encode(rows, parts[k], indexes[k]));
+
+        return stitch(QOIEncoder.qoiHeader(image), parts);
+    }
+
+    // ==================================================================================
+    // ================================= STRIPE METHODS =================================
+    // ==================================================================================
+
+    // First pass: leading run and index writes of a stripe
+    private static void scan(int[][] rows, Stripe stripe){
+        int previous = lastPixelBefore(rows, stripe.firstRow);
+        boolean leading = true;
+        for (int y = stripe.firstRow; y < stripe.lastRow; y++) {
+            for (int pixel : rows[y]) {
+                if (pixel == previous) {
+                    if (leading) stripe.leadingRun++;
+                    continue;
+                }
+                leading = false;
+                int slot = hash(pixel);
+                stripe.table[slot] = pixel;
+                stripe.written |= 1L << slot;
+                previous = pixel;
+            }
+        }
+    }
+
+    // Second pass: encode the pixels of the stripe after its leading run
+    private static void encode(int[][] rows, Stripe stripe, int[] index){
+        long skip = stripe.leadingRun;
+        long pixels = 0;
+        for (int y = stripe.firstRow; y < stripe.lastRow; y++) {
+            pixels += rows[y].length;
+        }
+        if (skip == pixels) {
+            return; // the whole stripe continues the run of the stripe before
+        }
+        var encoder = new QOIPixelEncoder(lastPixelBefore(rows, stripe.firstRow), index);
+        stripe.data = new byte[QOIPixelEncoder.maxEncodedSize(Math.toIntExact(pixels - skip))];
+        int position = 0;
+        for (int y = stripe.firstRow; y < stripe.lastRow; y++) {
+            int[] row = rows[y];
+            int offset = (int) Math.min(skip, row.length);
+            skip -= offset;
+            position = encoder.encode(row, offset, row.length - offset, stripe.data, position);
+        }
+        stripe.length = position;
+        stripe.trailingRun = encoder.pendingRun();
+    }
+
+    // Concatenate the header, the stripes, the runs crossing the boundaries and the EOF
+    private static byte[] stitch(byte[] header, Stripe[] stripes){
+        long size = header.length + QOI_EOF.length;
+        long run = 0;
+        for (var stripe : stripes) {
+            run += stripe.leadingRun;
+            if (stripe.length > 0) {
+                size += runChunks(run) + stripe.length;
+                run = stripe.trailingRun;
+            }
+        }
+        size += runChunks(run);
+        assert size <= Integer.MAX_VALUE;
+
+        byte[] file = new byte[(int) size];
+        System.arraycopy(header, 0, file, 0, header.length);
+        int position = header.length;
+        run = 0;
+        for (var stripe : stripes) {
+            run += stripe.leadingRun;
+            if (stripe.length > 0) {
+                position = writeRun(run, file, position);
+                System.arraycopy(stripe.data, 0, file, position, stripe.length);
+                position += stripe.length;
+                run = stripe.trailingRun;
+            }
+        }
+        position = writeRun(run, file, position);
+        System.arraycopy(QOI_EOF, 0, file, position, QOI_EOF.length);
+        return file;
+    }
+
+    // Number of QOI_OP_RUN chunks the serial encoder uses for a run
+    private static long runChunks(long run){
+        return (run + QOIPixelEncoder.MAX_RUN - 1) / QOIPixelEncoder.MAX_RUN;
+    }
+
+    // Write a run the way the serial encoder does: full chunks of 62 pixels, then the rest
+    private static int writeRun(long run, byte[] output, int position){
+        for (; run >= QOIPixelEncoder.MAX_RUN; run -= QOIPixelEncoder.MAX_RUN) {
+            output[position++] = QOIPixelEncoder.runChunk(QOIPixelEncoder.MAX_RUN);
+        }
+        if (run > 0) {
+            output[position++] = QOIPixelEncoder.runChunk((int) run);
+        }
+        return position;
+    }
+
+    // Pixel preceding the first pixel of the given row
+    private static int lastPixelBefore(int[][] rows, int row){
+        return row == 0 ? START_PIXEL_ARGB : rows[row - 1][rows[row - 1].length - 1];
+    }
+
+}
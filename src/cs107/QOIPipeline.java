@@ -0,0 +1,445 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Directory converter (same conversions as QOIBatch) split into three stages running at the same time:
+ * <ol>
+ *     <li>read : the content of the files is read from the disk,</li>
+ *     <li>convert : the content is decoded and encoded in the other format, in memory,</li>
+ *     <li>write : the converted content is written to the disk.</li>
+ * </ol>
+ * The stages are connected by bounded queues : a stage which is ahead waits for the next one,
+ * so the disk and the processors are kept busy together and the memory used stays bounded.
+ * Each stage has its own number of threads (for example few readers and writers for a spinning disk,
+ * more for an SSD), and the pipeline records the work and waiting time of each stage and the depth of each queue.
+ * <p>
+ * A file which cannot be read, converted or written is counted as a failure. Any other error of a stage
+ * (the walk of the directory fails, a thread runs out of memory ...) stops the whole pipeline : the other
+ * stages stop waiting for it, and the error is thrown again by run.
+ * @apiNote Run with : java cs107.Main pipeline input_dir output_dir [readers] [converters] [writers] [capacity]
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIPipeline {
+
+    /**
+     * Default number of files each queue can hold
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    // Time a stage waits for a queue before checking that the pipeline was not stopped
+    private static final long WAIT_MILLIS = 100;
+
+    // A file going through the stages
+    private static final class Job {
+        final Path source;
+        final Path destination;
+        byte[] content;
+        long inputSize;
+
+        Job(Path source, Path destination){
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    // Put in a queue once per thread of the next stage when a stage is over
+    private static final Job END = new Job(null, null);
+
+    /**
+     * Counters of a stage
+     */
+    public static final class Stage {
+        private final String name;
+        private final int threads;
+        private final AtomicInteger running;
+        private final LongAdder items = new LongAdder();
+        private final LongAdder workNanos = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+
+        private Stage(String name, int threads){
+            this.name = name;
+            this.threads = threads;
+            this.running = new AtomicInteger(threads);
+        }
+
+        /**
+         * @return (long) - Number of files processed by the stage
+         */
+        public long items(){
+            return items.sum();
+        }
+
+        /**
+         * @return (long) - Time spent processing files, summed over the threads of the stage
+         */
+        public long workNanos(){
+            return workNanos.sum();
+        }
+
+        /**
+         * @return (long) - Time spent waiting for the queues, summed over the threads of the stage
+         */
+        public long waitNanos(){
+            return waitNanos.sum();
+        }
+    }
+
+    /**
+     * Bounded queue between two stages, and its depth seen after each insertion
+     */
+    public static final class Queue {
+        private final String name;
+        private final BlockingQueue<Job> jobs;
+        private final int capacity;
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final LongAdder depths = new LongAdder();
+        private final LongAdder puts = new LongAdder();
+
+        private Queue(String name, int capacity){
+            this.name = name;
+            this.capacity = capacity;
+            this.jobs = new ArrayBlockingQueue<>(capacity);
+        }
+
+        // Wait while the queue is full, false if the pipeline was stopped meanwhile
+        private boolean put(Job job, AtomicReference<Throwable> error) throws InterruptedException {
+            while (!jobs.offer(job, WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (error.get() != null)
+                    return false;
+            }
+            if (job != END) {
+                int depth = jobs.size();
+                maxDepth.accumulateAndGet(depth, Math::max);
+                depths.add(depth);
+                puts.increment();
+            }
+            return true;
+        }
+
+        // Wait while the queue is empty, END if the pipeline was stopped
+        private Job take(AtomicReference<Throwable> error) throws InterruptedException {
+            Job job;
+            while ((job = jobs.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (error.get() != null)
+                    return END;
+            }
+            return error.get() != null ? END : job;
+        }
+
+        /**
+         * @return (int) - Number of files in the queue right now
+         */
+        public int depth(){
+            return jobs.size();
+        }
+
+        /**
+         * @return (int) - Largest number of files seen in the queue
+         */
+        public int maxDepth(){
+            return maxDepth.get();
+        }
+
+        /**
+         * @return (double) - Average number of files in the queue, seen after each insertion
+         */
+        public double meanDepth(){
+            long count = puts.sum();
+            return count == 0 ? 0 : (double) depths.sum() / count;
+        }
+    }
+
+    private final Stage read;
+    private final Stage convert;
+    private final Stage write;
+    private final Queue toConvert;
+    private final Queue toWrite;
+    // first error which stopped a stage, the other ones are suppressed by it
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    /**
+     * Create a pipeline, which converts one directory tree
+     * @param readers (int) - Number of threads reading the files
+     * @param converters (int) - Number of threads converting the files
+     * @param writers (int) - Number of threads writing the files
+     * @param capacity (int) - Number of files each queue can hold
+     * @throws AssertionError if one of the numbers is not positive
+     */
+    public QOIPipeline(int readers, int converters, int writers, int capacity){
+        assert readers > 0 && converters > 0 && writers > 0 && capacity > 0;
+        read = new Stage("read", readers);
+        convert = new Stage("convert", converters);
+        write = new Stage("write", writers);
+        toConvert = new Queue("read -> convert", capacity);
+        toWrite = new Queue("convert -> write", capacity);
+    }
+
+    /**
+     * Entry point of the pipeline mode
+     * @param args (String[]) - input directory, output directory, and optional numbers of
+     *             readers (2), converters (number of processors), writers (2) and queue capacity
+     */
+    public static void main(String[] args){
+        if (args.length < 2) {
+            System.err.println("Usage : pipeline input_dir output_dir [readers] [converters] [writers] [capacity]");
+            return;
+        }
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int converters = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        int writers = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        int capacity = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_CAPACITY;
+        var pipeline = new QOIPipeline(readers, converters, writers, capacity);
+        var report = pipeline.run(Path.of(args[0]), Path.of(args[1]));
+        System.out.println(report);
+        System.out.print(pipeline.metrics());
+    }
+
+    // ==================================================================================
+    // ================================ PIPELINE METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Convert all the ".png" and ".qoi" files of a directory tree, see QOIBatch::convert
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written, created if needed
+     * @return (QOIBatch.Report) - Number of converted files, failures and throughput
+     * @throws AssertionError if input is not a directory or the pipeline was already run
+     * @throws RuntimeException if output is input or contains it, if the directory cannot be walked through,
+     * or the error which stopped one of the stages
+     */
+    public QOIBatch.Report run(Path input, Path output){
+        assert input != null && output != null && Files.isDirectory(input);
+        QOIBatch.checkDirectories(input, output);
+        try (var walk = QOIBatch.files(input, output)) {
+            return run(walk.iterator(), input, output);
+        } catch (IOException | UncheckedIOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", input);
+        }
+    }
+
+    /**
+     * Convert the given files of a directory tree
+     * @param files (Iterator of Path) - Files to convert, shared by the readers
+     * @param input (Path) - Directory containing the files to convert
+     * @param output (Path) - Directory where the converted files are written, created if needed
+     * @return (QOIBatch.Report) - Number of converted files, failures and throughput
+     * @throws AssertionError if the pipeline was already run
+     * @throws RuntimeException the error which stopped one of the stages, such as an UncheckedIOException of files
+     */
+    QOIBatch.Report run(Iterator<Path> files, Path input, Path output){
+        assert read.items() == 0 && toConvert.puts.sum() == 0;
+
+        var totals = new QOIBatch.Totals();
+        long start = System.nanoTime();
+        try {
+            var threads = new ArrayList<Thread>();
+            start(threads, read, () -> read(files, input, output, totals));
+            start(threads, convert, () -> convert(totals));
+            start(threads, write, () -> write(totals));
+            for (var thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Helper.fail("The pipeline was interrupted%n");
+        }
+        var failure = error.get();
+        if (failure instanceof RuntimeException e)
+            throw e;
+        if (failure instanceof Error e)
+            throw e;
+        return totals.report(System.nanoTime() - start);
+    }
+
+    /**
+     * @return (List of Stage) - The read, convert and write stages
+     */
+    public List<Stage> stages(){
+        return List.of(read, convert, write);
+    }
+
+    /**
+     * @return (List of Queue) - The queues between the read and convert stages, and between the convert and write stages
+     */
+    public List<Queue> queues(){
+        return List.of(toConvert, toWrite);
+    }
+
+    /**
+     * Table of the counters of the stages and the queues
+     * @return (String) - One line per stage and per queue
+     */
+    public String metrics(){
+        var builder = new StringBuilder();
+        builder.append(String.format("%-18s %8s %8s %10s %10s%n", "stage", "threads", "files", "work (s)", "wait (s)"));
+        for (var stage : stages()) {
+            builder.append(String.format("%-18s %8d %8d %10.2f %10.2f%n", stage.name, stage.threads, stage.items(),
+                    stage.workNanos() / 1e9, stage.waitNanos() / 1e9));
+        }
+        builder.append(String.format("%-18s %8s %8s %10s %10s%n", "queue", "capacity", "depth", "max", "mean"));
+        for (var queue : queues()) {
+            builder.append(String.format("%-18s %8d %8d %10d %10.2f%n", queue.name, queue.capacity, queue.depth(),
+                    queue.maxDepth(), queue.meanDepth()));
+        }
+        return builder.toString();
+    }
+
+    // ==================================================================================
+    // ================================== STAGE METHODS =================================
+    // ==================================================================================
+
+    // Start the threads of a stage, an error escaping from a thread stops the pipeline
+    private void start(List<Thread> threads, Stage stage, Runnable body){
+        Runnable guarded = () -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                if (!error.compareAndSet(null, e))
+                    error.get().addSuppressed(e);
+            }
+        };
+        for (int i = 0; i < stage.threads; i++) {
+            var thread = new Thread(guarded, "qoi-" + stage.name + "-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    // Read the files until the walk is over, a failure of the walk stops the pipeline
+    private void read(Iterator<Path> files, Path input, Path output, QOIBatch.Totals totals){
+        try {
+            while (error.get() == null) {
+                Job job;
+                synchronized (files) {
+                    if (!files.hasNext())
+                        return;
+                    var file = files.next();
+                    job = new Job(file, QOIBatch.destination(input, output, file));
+                }
+                long start = System.nanoTime();
+                try {
+                    job.content = Helper.read(job.source.toString());
+                    job.inputSize = job.content.length;
+                } catch (RuntimeException | AssertionError e) {
+                    totals.failed(job.source, e);
+                    continue;
+                } finally {
+                    done(read, start);
+                }
+                if (!put(read, toConvert, job))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            over(read, toConvert, convert.threads);
+        }
+    }
+
+    // Convert the files until the read stage is over
+    private void convert(QOIBatch.Totals totals){
+        try {
+            Job job;
+            while ((job = take(convert, toConvert)) != END) {
+                long start = System.nanoTime();
+                try {
+                    if (QOIBatch.isPng(job.source)) {
+                        var image = Helper.readImage(new ByteArrayInputStream(job.content));
+                        job.content = QOIEncoder.qoiFile(image);
+                    } else {
+                        var image = QOIDecoder.decodeQoiFile(job.content);
+                        var png = new ByteArrayOutputStream();
+                        Helper.writeImage(png, image);
+                        job.content = png.toByteArray();
+                    }
+                } catch (RuntimeException | AssertionError e) {
+                    totals.failed(job.source, e);
+                    continue;
+                } finally {
+                    done(convert, start);
+                }
+                if (!put(convert, toWrite, job))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            over(convert, toWrite, write.threads);
+        }
+    }
+
+    // Write the files until the convert stage is over
+    private void write(QOIBatch.Totals totals){
+        try {
+            Job job;
+            while ((job = take(write, toWrite)) != END) {
+                long start = System.nanoTime();
+                try {
+                    Files.createDirectories(job.destination.toAbsolutePath().getParent());
+                    Helper.write(job.destination, job.content);
+                    totals.converted(job.source, job.inputSize, job.content.length);
+                } catch (IOException | RuntimeException | AssertionError e) {
+                    totals.failed(job.source, e);
+                } finally {
+                    done(write, start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Count a processed file
+    private static void done(Stage stage, long start){
+        stage.workNanos.add(System.nanoTime() - start);
+        stage.items.increment();
+    }
+
+    // Hand a file to the next stage, waiting while its queue is full, false if the pipeline was stopped
+    private boolean put(Stage stage, Queue queue, Job job) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean put = queue.put(job, error);
+        stage.waitNanos.add(System.nanoTime() - start);
+        return put;
+    }
+
+    // Take the next file, waiting while the queue is empty, END if the pipeline was stopped
+    private Job take(Stage stage, Queue queue) throws InterruptedException {
+        long start = System.nanoTime();
+        var job = queue.take(error);
+        stage.waitNanos.add(System.nanoTime() - start);
+        return job;
+    }
+
+    // When the last thread of a stage stops, tell each thread of the next stage to stop too
+    private void over(Stage stage, Queue queue, int next){
+        if (stage.running.decrementAndGet() == 0) {
+            for (int i = 0; i < next; i++) {
+                try {
+                    if (!queue.put(END, error))
+                        return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static cs107.QOISpecification.*;
+
+/**
+ * Allocation-free "Quite Ok Image" decoder producing ARGB packed pixels
+ * (the layout used by Helper.Image::data) or flat RGBA / RGB bytes.
+ * The decoder keeps its state (previous pixel, index and pending run) between calls,
+ * so the data can be decoded in one call or slice by slice (for example row by row)
+ * and the input can be handed over in several parts.
+ * The produced pixels are the same as QOIDecoder::decodeData(byte[], int, int).
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIPixelDecoder {
+
+    // ==================================================================================
+    // ================================== DELTA TABLES ==================================
+    // ==================================================================================
+
+    /**
+     * Color differences of each QOI_OP_DIFF chunk, and of the first byte of each QOI_OP_LUMA chunk,
+     * packed as RGB bytes (see add)
+     */
+    private static final int[] DELTAS = new int[256];
+
+    /**
+     * Color differences added by the second byte of a QOI_OP_LUMA chunk, packed as RGB bytes
+     */
+    private static final int[] LUMA_DELTAS = new int[256];
+
+    static {
+        for (int chunk = 0; chunk < 256; chunk++) {
+            if ((chunk & 0b11_00_00_00) == (QOI_OP_DIFF_TAG & 0xFF)) {
+                DELTAS[chunk] = pack((chunk >> 4 & 0b11) - 2, (chunk >> 2 & 0b11) - 2, (chunk & 0b11) - 2);
+            } else if ((chunk & 0b11_00_00_00) == (QOI_OP_LUMA_TAG & 0xFF)) {
+                int dg = (chunk & 0b11_11_11) - 32;
+                DELTAS[chunk] = pack(dg - 8, dg, dg - 8);
+            }
+            LUMA_DELTAS[chunk] = pack(chunk >> 4 & 0b11_11, 0, chunk & 0b11_11);
+        }
+    }
+
+    private final int[] index = new int[64];
+    private int previous = START_PIXEL_ARGB;
+    private int run = 0; // pixels of the last QOI_OP_RUN which are not written yet
+
+    private int[] scratch; // only used when decoding to bytes
+    private QOIStats stats = null;
+
+    /**
+     * Create a decoder positioned at the first chunk of an image
+     */
+    public QOIPixelDecoder(){}
+
+    /**
+     * Create a decoder resuming in the middle of an image
+     * @param previous (int) - ARGB pixel preceding the next pixel to decode
+     * @param run (int) - Pixels of the last run which are not written yet
+     * @param index (int[]) - Content of the 64 entries index at this point, copied
+     */
+    public QOIPixelDecoder(int previous, int run, int[] index){
+        assert index != null && index.length == 64;
+        assert run >= 0 && run <= 62;
+        this.previous = previous;
+        this.run = run;
+        System.arraycopy(index, 0, this.index, 0, 64);
+    }
+
+    /**
+     * Record the read chunks into the given statistics
+     * @param stats (QOIStats) - Where to record the chunks, null to stop recording
+     */
+    public void setStats(QOIStats stats){
+        this.stats = stats;
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode the next pixels as ARGB packed integers.
+     * The chunks are read from input.position() up to input.limit() and
+     * the position of input is moved after the last consumed chunk
+     * @param input (ByteBuffer) - Encoded data
+     * @param output (int[]) - Where to store the pixels
+     * @param offset (int) - Index in output of the first pixel to write
+     * @param count (int) - Number of pixels to decode
+     * @return (int) - Number of written pixels, less than count only when
+     * the next chunk is not completely available in input
+     */
+    public int decode(ByteBuffer input, int[] output, int offset, int count){
+        assert input != null && output != null;
+        assert offset >= 0 && count >= 0 && offset + count <= output.length;
+
+        var index = this.index;
+        var previous = this.previous;
+        var run = this.run;
+        var stats = this.stats;
+        int position = input.position();
+        int limit = input.limit();
+        int i = offset;
+        int end = offset + count;
+
+        while (i < end) {
+            if (run > 0) {
+                int n = Math.min(run, end - i);
+                Arrays.fill(output, i, i + n, previous);
+                i += n;
+                run -= n;
+                continue;
+            }
+            if (position >= limit) {
+                break;
+            }
+            // the tags are tested by range, from the smallest chunk to the biggest
+            int chunk = input.get(position) & 0xFF;
+            int pixel;
+            if (chunk < (QOI_OP_LUMA_TAG & 0xFF)) {
+                if (chunk < (QOI_OP_DIFF_TAG & 0xFF)) { // QOI_OP_INDEX
+                    pixel = index[chunk];
+                } else { // QOI_OP_DIFF
+                    pixel = add(previous, DELTAS[chunk]);
+                }
+                position += 1;
+            } else if (chunk < (QOI_OP_RUN_TAG & 0xFF)) { // QOI_OP_LUMA
+                if (position + 2 > limit) break;
+                pixel = add(add(previous, DELTAS[chunk]), LUMA_DELTAS[input.get(position + 1) & 0xFF]);
+                position += 2;
+            } else if (chunk < (QOI_OP_RGB_TAG & 0xFF)) { // QOI_OP_RUN, the index is not updated
+                run = (chunk & 0b11_11_11) + 1;
+                position += 1;
+                if (stats != null) stats.run(run);
+                continue;
+            } else if (chunk == (QOI_OP_RGB_TAG & 0xFF)) {
+                if (position + 4 > limit) break;
+                pixel = previous & 0xFF_00_00_00 | rgb(input, position + 1);
+                position += 4;
+            } else { // QOI_OP_RGBA
+                if (position + 5 > limit) break;
+                pixel = (input.get(position + 4) & 0xFF) << 24 | rgb(input, position + 1);
+                position += 5;
+            }
+            if (stats != null) stats.pixel((byte) chunk, size(chunk), index[hash(pixel)], pixel);
+            index[hash(pixel)] = pixel;
+            output[i++] = pixel;
+            previous = pixel;
+        }
+
+        input.position(position);
+        this.previous = previous;
+        this.run = run;
+        return i - offset;
+    }
+
+    /**
+     * Decode the next pixels as flat bytes, channel after channel (RGBA or RGB)
+     * @param input (ByteBuffer) - Encoded data
+     * @param output (byte[]) - Where to store the pixels
+     * @param offset (int) - Index in output of the first byte to write
+     * @param count (int) - Number of pixels to decode
+     * @param channels (int) - 4 to write RGBA pixels, 3 to write RGB pixels
+     * @return (int) - Number of written pixels, less than count only when
+     * the next chunk is not completely available in input
+     */
+    public int decode(ByteBuffer input, byte[] output, int offset, int count, int channels){
+        assert channels == RGB || channels == RGBA;
+        assert output != null && offset >= 0 && count >= 0 && offset + count * channels <= output.length;
+
+        if (scratch == null) {
+            scratch = new int[1024];
+        }
+        int written = 0;
+        while (written < count) {
+            int decoded = decode(input, scratch, 0, Math.min(scratch.length, count - written));
+            int o = offset + written * channels;
+            for (int j = 0; j < decoded; j++) {
+                int pixel = scratch[j];
+                output[o] = (byte) (pixel >> 16);
+                output[o + 1] = (byte) (pixel >> 8);
+                output[o + 2] = (byte) pixel;
+                if (channels == RGBA) {
+                    output[o + 3] = (byte) (pixel >>> 24);
+                }
+                o += channels;
+            }
+            written += decoded;
+            if (decoded == 0) {
+                break;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @return (int) - Number of pixels of the last run which are not written yet
+     */
+    public int pendingRun(){
+        return run;
+    }
+
+    /**
+     * @return (int) - ARGB pixel preceding the next pixel to decode
+     */
+    public int previous(){
+        return previous;
+    }
+
+    /**
+     * @return (int[]) - Copy of the current content of the 64 entries index
+     */
+    public int[] index(){
+        return index.clone();
+    }
+
+    // Number of bytes of the chunk starting with the given byte, QOI_OP_RUN excluded
+    private static int size(int chunk){
+        if (chunk < (QOI_OP_LUMA_TAG & 0xFF)) return 1;
+        if (chunk < (QOI_OP_RUN_TAG & 0xFF)) return 2;
+        return chunk == (QOI_OP_RGB_TAG & 0xFF) ? 4 : 5;
+    }
+
+    // Read 3 bytes as the RGB channels of an ARGB pixel
+    private static int rgb(ByteBuffer input, int position){
+        return (input.get(position) & 0xFF) << 16 | (input.get(position + 1) & 0xFF) << 8 | (input.get(position + 2) & 0xFF);
+    }
+
+    // Pack color differences as the RGB bytes of an ARGB pixel
+    private static int pack(int dr, int dg, int db){
+        return (dr & 0xFF) << 16 | (dg & 0xFF) << 8 | (db & 0xFF);
+    }
+
+    // Add packed differences to the color channels of an ARGB pixel, each channel wraps around, alpha is unchanged.
+    // Red and blue are added together: the carry out of blue lands in the green byte, which is masked out
+    private static int add(int pixel, int delta){
+        return pixel & 0xFF_00_00_00
+                | (pixel & 0x00_FF_00_FF) + (delta & 0x00_FF_00_FF) & 0x00_FF_00_FF
+                | (pixel & 0x00_00_FF_00) + (delta & 0x00_00_FF_00) & 0x00_00_FF_00;
+    }
+
+}
@@ -0,0 +1,210 @@
+package cs107;
+
+import static cs107.QOISpecification.*;
+
+/**
+ * Allocation-free "Quite Ok Image" encoder working on ARGB packed pixels
+ * (the layout used by Helper.Image::data).
+ * The encoder keeps its state (previous pixel, index and pending run) between calls,
+ * so an image can be encoded in one call or slice by slice (for example row by row).
+ * The produced chunks are byte-identical to QOIEncoder::encodeData(byte[][]).
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIPixelEncoder {
+
+    /**
+     * Largest number of bytes used to encode one pixel (QOI_OP_RGBA)
+     */
+    public static final int MAX_CHUNK_SIZE = 5;
+
+    /**
+     * Longest run that fits in one QOI_OP_RUN chunk
+     */
+    public static final int MAX_RUN = 62;
+
+    private final int[] index = new int[64];
+    private int previous = START_PIXEL_ARGB;
+    private int run = 0;
+    private QOIStats stats = null;
+
+    /**
+     * Create an encoder positioned at the first pixel of an image
+     */
+    public QOIPixelEncoder(){}
+
+    /**
+     * Create an encoder resuming in the middle of an image
+     * @param previous (int) - ARGB pixel preceding the next pixel to encode
+     * @param index (int[]) - Content of the 64 entries index at this point, copied
+     * @apiNote The encoder starts without a pending run
+     */
+    public QOIPixelEncoder(int previous, int[] index){
+        assert index != null && index.length == 64;
+        this.previous = previous;
+        System.arraycopy(index, 0, this.index, 0, 64);
+    }
+
+    /**
+     * Worst case size of the encoded data of an image
+     * @param pixels (int) - Number of pixels of the image
+     * @return (int) - Number of bytes that always suffices to encode the pixels
+     * @throws AssertionError if the image is too big to be encoded in one array
+     */
+    public static int maxEncodedSize(int pixels){
+        assert pixels >= 0;
+        assert (long) pixels * MAX_CHUNK_SIZE <= Integer.MAX_VALUE - 16;
+        return pixels * MAX_CHUNK_SIZE;
+    }
+
+    /**
+     * Record the written chunks into the given statistics
+     * @param stats (QOIStats) - Where to record the chunks, null to stop recording
+     */
+    public void setStats(QOIStats stats){
+        this.stats = stats;
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode the next pixels of the image
+     * @param pixels (int[]) - ARGB packed pixels
+     * @param offset (int) - Index of the first pixel to encode
+     * @param count (int) - Number of pixels to encode
+     * @param output (byte[]) - Where to write the chunks, needs maxEncodedSize(count) free bytes
+     * @param position (int) - Index in output where to write the first chunk
+     * @return (int) - Index in output following the last written chunk
+     * @apiNote The last run is only written when it is interrupted or by a call to finish
+     */
+    public int encode(int[] pixels, int offset, int count, byte[] output, int position){
+        assert pixels != null && output != null;
+        assert offset >= 0 && count >= 0 && offset + count <= pixels.length;
+
+        var index = this.index;
+        var previous = this.previous;
+        var run = this.run;
+        var stats = this.stats;
+        for (int i = offset, end = offset + count; i < end; i++) {
+            int pixel = pixels[i];
+            if (pixel == previous) {
+                if (++run == MAX_RUN) {
+                    output[position++] = runChunk(run);
+                    if (stats != null) stats.run(run);
+                    run = 0;
+                }
+                continue;
+            }
+            if (run > 0) {
+                output[position++] = runChunk(run);
+                if (stats != null) stats.run(run);
+                run = 0;
+            }
+            position = stats == null
+                    ? writeChunk(pixel, previous, index, output, position)
+                    : writeChunk(pixel, previous, index, output, position, stats);
+            previous = pixel;
+        }
+        this.previous = previous;
+        this.run = run;
+        return position;
+    }
+
+    /**
+     * Write the pending run, if any. To be called once every pixel has been encoded
+     * @param output (byte[]) - Where to write the chunk
+     * @param position (int) - Index in output where to write the chunk
+     * @return (int) - Index in output following the written chunk
+     */
+    public int finish(byte[] output, int position){
+        if (run > 0) {
+            output[position++] = runChunk(run);
+            if (stats != null) stats.run(run);
+            run = 0;
+        }
+        return position;
+    }
+
+    /**
+     * @return (int) - Number of pixels of the run which is not written yet
+     */
+    public int pendingRun(){
+        return run;
+    }
+
+    // ==================================================================================
+    // ================================= CHUNK METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * QOI_OP_RUN chunk for the given run length
+     * @param count (int) - Length of the run, between 1 and 62
+     * @return (byte) - The chunk
+     */
+    static byte runChunk(int count){
+        assert count > 0 && count <= MAX_RUN;
+        return (byte) (QOI_OP_RUN_TAG | (count - 1));
+    }
+
+    /**
+     * Encode a pixel which differs from the previous one with the smallest
+     * possible chunk (QOI_OP_INDEX, QOI_OP_DIFF, QOI_OP_LUMA, QOI_OP_RGB or QOI_OP_RGBA)
+     * and store it in the index
+     * @param pixel (int) - ARGB pixel to encode
+     * @param previous (int) - ARGB previous pixel
+     * @param index (int[]) - The 64 entries index, updated in place
+     * @param output (byte[]) - Where to write the chunk
+     * @param position (int) - Index in output where to write the chunk
+     * @return (int) - Index in output following the written chunk
+     */
+    static int writeChunk(int pixel, int previous, int[] index, byte[] output, int position){
+        int hash = hash(pixel);
+        if (index[hash] == pixel) {
+            output[position++] = (byte) (QOI_OP_INDEX_TAG | hash);
+            return position;
+        }
+        index[hash] = pixel;
+
+        if ((pixel ^ previous) >>> 24 != 0) { // alpha channel changed
+            output[position] = QOI_OP_RGBA_TAG;
+            output[position + 1] = (byte) (pixel >> 16);
+            output[position + 2] = (byte) (pixel >> 8);
+            output[position + 3] = (byte) pixel;
+            output[position + 4] = (byte) (pixel >>> 24);
+            return position + 5;
+        }
+
+        int dr = (byte) ((pixel >> 16) - (previous >> 16)); // wrapped differences, as in the byte[] encoder
+        int dg = (byte) ((pixel >> 8) - (previous >> 8));
+        int db = (byte) (pixel - previous);
+        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+            output[position++] = (byte) (QOI_OP_DIFF_TAG | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+            return position;
+        }
+
+        int drdg = dr - dg;
+        int dbdg = db - dg;
+        if (dg >= -32 && dg <= 31 && drdg >= -8 && drdg <= 7 && dbdg >= -8 && dbdg <= 7) {
+            output[position] = (byte) (QOI_OP_LUMA_TAG | (dg + 32));
+            output[position + 1] = (byte) ((drdg + 8) << 4 | (dbdg + 8));
+            return position + 2;
+        }
+
+        output[position] = QOI_OP_RGB_TAG;
+        output[position + 1] = (byte) (pixel >> 16);
+        output[position + 2] = (byte) (pixel >> 8);
+        output[position + 3] = (byte) pixel;
+        return position + 4;
+    }
+
+    // writeChunk, recording the chunk and the index slot it replaced
+    private static int writeChunk(int pixel, int previous, int[] index, byte[] output, int position, QOIStats stats){
+        int replaced = index[hash(pixel)];
+        int next = writeChunk(pixel, previous, index, output, position);
+        stats.pixel(output[position], next - position, replaced, pixel);
+        return next;
+    }
+
+}
@@ -0,0 +1,334 @@
+package cs107;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Seek index of a "Quite Ok Image" file, allowing random access and parallel decoding.
+ * <p>
+ * Every chunk depends on the previous pixel and on the index, so a file can normally only be
+ * decoded from its first chunk. Every N rows, the seek index records the decoder state at the start
+ * of the row: byte offset of the next chunk, previous pixel, pending run and content of the index.
+ * Decoding can then start at any recorded row, and the parts between two recorded rows can be
+ * decoded independently. The seek index is built with one scan of the file and can be stored
+ * next to it in a sidecar file. The sidecar file records the size and the modification time of the file
+ * it was built from : it is built again when one of them changes, or when it cannot be read. It also records
+ * a hash of the header and of a few blocks of the file, only checked when asked to (see load), so that
+ * loading a sidecar file never reads the whole image.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOISeekIndex {
+
+    /**
+     * Magic Number of a seek index file
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'x'};
+
+    /**
+     * Default number of rows between two recorded states
+     */
+    public static final int DEFAULT_INTERVAL = 64;
+
+    // size of the blocks hashed at the beginning, in the middle and at the end of the file
+    private static final int SAMPLE_SIZE = 1 << 16;
+
+    // magic, size, modification time and hash of the file, width, height and interval
+    private static final int SIDECAR_HEADER_SIZE = MAGIC.length + 3 * Long.BYTES + 3 * Integer.BYTES;
+    // offset, previous pixel, pending run and index of a recorded state
+    private static final int SIDECAR_STATE_SIZE = (3 + 64) * Integer.BYTES;
+
+    private final long fileSize;
+    // modification time and sampled hash of the file, recorded in the sidecar file by load
+    private long modified = 0;
+    private long hash = 0;
+    private final int width;
+    private final int height;
+    private final int interval;
+    // recorded state at the start of row k * interval
+    private final int[] offsets;
+    private final int[] previous;
+    private final int[] runs;
+    private final int[][] indexes;
+
+    private QOISeekIndex(long fileSize, int width, int height, int interval){
+        this.fileSize = fileSize;
+        this.width = width;
+        this.height = height;
+        this.interval = interval;
+        int count = (height + interval - 1) / interval;
+        offsets = new int[count];
+        previous = new int[count];
+        runs = new int[count];
+        indexes = new int[count][];
+    }
+
+    // ==================================================================================
+    // ================================= BUILD METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * Build the seek index of a file by decoding it once
+     * @param file (ByteBuffer) - Content of the file, starting at index 0 (see Helper::map)
+     * @param interval (int) - Number of rows between two recorded states
+     * @return (QOISeekIndex) - The seek index of the file
+     * @throws AssertionError if the file is not a valid "Quite Ok Image" file
+     */
+    public static QOISeekIndex build(ByteBuffer file, int interval){
+        assert file != null && interval > 0;
+        int[] header = header(file);
+        var seekIndex = new QOISeekIndex(file.limit(), header[0], header[1], interval);
+
+        var input = data(file, QOISpecification.HEADER_SIZE);
+        var decoder = new QOIPixelDecoder();
+        int[] row = new int[seekIndex.width];
+        for (int y = 0; y < seekIndex.height; y++) {
+            if (y % interval == 0) {
+                int k = y / interval;
+                seekIndex.offsets[k] = input.position();
+                seekIndex.previous[k] = decoder.previous();
+                seekIndex.runs[k] = decoder.pendingRun();
+                seekIndex.indexes[k] = decoder.index();
+            }
+            int written = decoder.decode(input, row, 0, row.length);
+            assert written == row.length;
+        }
+        return seekIndex;
+    }
+
+    /**
+     * Read the seek index of a "Quite Ok Image" file from its sidecar file, or build it and write
+     * the sidecar file if it is missing, out of date (size or modification time) or unreadable
+     * @param path (String) - Path of the "Quite Ok Image" file
+     * @param interval (int) - Number of rows between two recorded states, used when the index is built
+     * @return (QOISeekIndex) - The seek index of the file
+     */
+    public static QOISeekIndex load(String path, int interval){
+        return load(path, interval, false);
+    }
+
+    /**
+     * Read the seek index of a "Quite Ok Image" file from its sidecar file, or build it and write
+     * the sidecar file if it is missing, out of date or unreadable
+     * @param path (String) - Path of the "Quite Ok Image" file
+     * @param interval (int) - Number of rows between two recorded states, used when the index is built
+     * @param verify (boolean) - Whether the hash of the header and of the sampled blocks is also compared,
+     *               for files rewritten without changing their size and modification time
+     * @return (QOISeekIndex) - The seek index of the file
+     */
+    public static QOISeekIndex load(String path, int interval, boolean verify){
+        var file = Helper.map(path);
+        long modified = modified(path);
+        var sidecar = Path.of(sidecarPath(path));
+        if (Files.isRegularFile(sidecar)) {
+            try {
+                var seekIndex = read(sidecar.toString());
+                int[] header = header(file);
+                if (seekIndex.fileSize == file.limit() && seekIndex.modified == modified
+                        && seekIndex.width == header[0] && seekIndex.height == header[1]
+                        && (!verify || seekIndex.hash == sampledHash(file)))
+                    return seekIndex;
+            } catch (RuntimeException | AssertionError e) {
+                // truncated or corrupted sidecar file, built again
+            }
+        }
+        var seekIndex = build(file, interval);
+        seekIndex.modified = modified;
+        seekIndex.hash = sampledHash(file);
+        seekIndex.write(sidecar.toString());
+        return seekIndex;
+    }
+
+    /**
+     * @param path (String) - Path of a "Quite Ok Image" file
+     * @return (String) - Path of its seek index sidecar file
+     */
+    public static String sidecarPath(String path){
+        return path + ".idx";
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode a range of rows without decoding the rows before the closest recorded state
+     * @param file (ByteBuffer) - Content of the file, starting at index 0 (see Helper::map)
+     * @param firstRow (int) - First row to decode
+     * @param rowCount (int) - Number of rows to decode
+     * @return (int[][]) - ARGB packed pixels of the rows
+     * @throws AssertionError if the rows are outside the image or the index doesn't match the file
+     */
+    public int[][] decodeRows(ByteBuffer file, int firstRow, int rowCount){
+        assert file != null && file.limit() == fileSize;
+        assert firstRow >= 0 && rowCount >= 0 && firstRow + rowCount <= height;
+
+        int k = firstRow / interval;
+        var decoder = decoder(k);
+        var input = data(file, offsets[k]);
+        int[] skipped = new int[width];
+        for (int y = k * interval; y < firstRow; y++) {
+            int written = decoder.decode(input, skipped, 0, width);
+            assert written == width;
+        }
+        int[][] rows = new int[rowCount][width];
+        for (int[] row : rows) {
+            int written = decoder.decode(input, row, 0, width);
+            assert written == width;
+        }
+        return rows;
+    }
+
+    /**
+     * Decode the whole file, the parts between two recorded states being decoded in parallel
+     * @param file (ByteBuffer) - Content of the file, starting at index 0 (see Helper::map)
+     * @param pool (ForkJoinPool) - Pool running the decoding
+     * @return (Helper.Image) - The decoded image, same as QOIDecoder::decodeQoiFile
+     * @throws AssertionError if the index doesn't match the file
+     */
+    public Helper.Image decodeQoiFile(ByteBuffer file, ForkJoinPool pool){
+        assert file != null && file.limit() == fileSize && pool != null;
+        int[] header = header(file);
+        int[][] rows = new int[height][width];
+        Parallel.runAll(pool, offsets.length, k -> {
+            var decoder = decoder(k);
+            var input = data(file, offsets[k]);
+            for (int y = k * interval, end = Math.min(height, y + interval); y < end; y++) {
+                int written = decoder.decode(input, rows[y], 0, width);
+                assert written == width;
+            }
+        });
+        return Helper.generateImage(rows, (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // ================================= SIDECAR METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Write the seek index to a file, replaced at once so that readers never see a partial file
+     * @param path (String) - Relative or Absolute path to the file
+     */
+    public void write(String path){
+        var content = new ByteArrayOutputStream(SIDECAR_HEADER_SIZE + offsets.length * SIDECAR_STATE_SIZE);
+        try (var output = new DataOutputStream(content)) {
+            output.write(MAGIC);
+            output.writeLong(fileSize);
+            output.writeLong(modified);
+            output.writeLong(hash);
+            output.writeInt(width);
+            output.writeInt(height);
+            output.writeInt(interval);
+            for (int k = 0; k < offsets.length; k++) {
+                output.writeInt(offsets[k]);
+                output.writeInt(previous[k]);
+                output.writeInt(runs[k]);
+                for (int entry : indexes[k]) {
+                    output.writeInt(entry);
+                }
+            }
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", path);
+        }
+        Helper.write(Path.of(path), content.toByteArray());
+    }
+
+    /**
+     * Read a seek index from a file. The sizes and the recorded states are checked
+     * (whether the assertions are enabled or not) before the arrays are allocated
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (QOISeekIndex) - The seek index
+     * @throws RuntimeException if the file cannot be read, is truncated or is corrupted
+     */
+    public static QOISeekIndex read(String path){
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(Path.of(path))))) {
+            long size = Files.size(Path.of(path));
+            byte[] magic = input.readNBytes(MAGIC.length);
+            if (!ArrayUtils.equals(magic, MAGIC) || size < SIDECAR_HEADER_SIZE)
+                return Helper.fail("The file \"%s\" is not a seek index%n", path);
+            long fileSize = input.readLong();
+            long modified = input.readLong();
+            long hash = input.readLong();
+            int width = input.readInt();
+            int height = input.readInt();
+            int interval = input.readInt();
+            if (width <= 0 || height <= 0 || interval <= 0
+                    || size != SIDECAR_HEADER_SIZE + (long) ((height - 1) / interval + 1) * SIDECAR_STATE_SIZE)
+                return Helper.fail("The seek index \"%s\" is corrupted%n", path);
+            var seekIndex = new QOISeekIndex(fileSize, width, height, interval);
+            seekIndex.modified = modified;
+            seekIndex.hash = hash;
+            for (int k = 0; k < seekIndex.offsets.length; k++) {
+                seekIndex.offsets[k] = input.readInt();
+                seekIndex.previous[k] = input.readInt();
+                seekIndex.runs[k] = input.readInt();
+                seekIndex.indexes[k] = new int[64];
+                for (int i = 0; i < 64; i++) {
+                    seekIndex.indexes[k][i] = input.readInt();
+                }
+                int minimum = k == 0 ? QOISpecification.HEADER_SIZE : seekIndex.offsets[k - 1];
+                if (seekIndex.offsets[k] < minimum || seekIndex.offsets[k] > fileSize - QOISpecification.QOI_EOF.length
+                        || seekIndex.runs[k] < 0 || seekIndex.runs[k] > 62)
+                    return Helper.fail("The seek index \"%s\" is corrupted%n", path);
+            }
+            return seekIndex;
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * @return (int) - Number of rows between two recorded states
+     */
+    public int interval(){
+        return interval;
+    }
+
+    // ==================================================================================
+
+    // Decoder in the state recorded at the start of row k * interval
+    private QOIPixelDecoder decoder(int k){
+        return new QOIPixelDecoder(previous[k], runs[k], indexes[k]);
+    }
+
+    private static long modified(String path){
+        try {
+            return Files.getLastModifiedTime(Path.of(path)).toMillis();
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    // Hash of the header and of three blocks of the file (beginning, middle and end), of the whole file when it is small
+    private static long sampledHash(ByteBuffer file){
+        int size = file.limit();
+        if (size <= 3 * SAMPLE_SIZE)
+            return ArrayUtils.hash64(file.duplicate().position(0));
+        long hash = 0;
+        for (int start : new int[]{0, (size - SAMPLE_SIZE) / 2, size - SAMPLE_SIZE}) {
+            hash = 31 * hash + ArrayUtils.hash64(file.duplicate().position(start).limit(start + SAMPLE_SIZE));
+        }
+        return hash;
+    }
+
+    // View of the encoded pixels of the file, starting at the given offset
+    private static ByteBuffer data(ByteBuffer file, int offset){
+        return file.duplicate().limit(file.limit() - QOISpecification.QOI_EOF.length).position(offset);
+    }
+
+    // Header of the file: {width, height, channels, color space}
+    private static int[] header(ByteBuffer file){
+        assert file.limit() >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        file.get(0, header);
+        return QOIDecoder.decodeHeader(header);
+    }
+
+}
@@ -0,0 +1,292 @@
+package cs107;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Embedded HTTP conversion service, listening on the loopback address only.
+ * <ul>
+ *     <li>POST /encode : the body is an image (PNG ...), the response is its "Quite Ok Image" file,</li>
+ *     <li>POST /decode : the body is a "Quite Ok Image" file, the response is the image as PNG,</li>
+ *     <li>GET /metrics : number of requests and latency of each endpoint, as text.</li>
+ * </ul>
+ * The bodies are streamed : the request is decoded while it is received, and the response is
+ * encoded while it is sent (QOIStreamEncoder writes the same bytes as QOIEncoder::qoiFile).
+ * Each request runs on its own thread, a virtual thread when the JVM supports them. When the given
+ * number of conversions are already running, the next requests are rejected with "503 Service Unavailable".
+ * <p>
+ * The size of the image is read from the header of the body, and checked before any pixel is decoded :
+ * images with more pixels than the limit are rejected with "413 Payload Too Large", invalid headers with
+ * "400 Bad Request". These checks do not depend on the assertions being enabled.
+ * @apiNote Run with : java cs107.Main serve [port] [concurrent conversions] [virtual] [max pixels]
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIServer implements AutoCloseable {
+
+    /**
+     * Default port of the service
+     */
+    public static final int DEFAULT_PORT = 8107;
+
+    /**
+     * Default largest number of pixels of a converted image, 128 MB of ARGB pixels
+     */
+    public static final long DEFAULT_MAX_PIXELS = 1L << 25;
+
+    /**
+     * Latency counters of an endpoint. The latencies are counted in buckets of powers of 2 microseconds
+     */
+    public static final class Latency {
+        private final String name;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        private Latency(String name){
+            this.name = name;
+        }
+
+        private void record(long nanos, boolean failed){
+            requests.increment();
+            if (failed)
+                failures.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos / 1000));
+        }
+
+        /**
+         * @return (long) - Number of answered requests
+         */
+        public long requests(){
+            return requests.sum();
+        }
+
+        /**
+         * @return (long) - Number of requests answered with an error
+         */
+        public long failures(){
+            return failures.sum();
+        }
+
+        /**
+         * Upper bound of a percentile of the latency
+         * @param percentile (double) - Between 0 and 100
+         * @return (long) - Latency in microseconds, rounded up to a power of 2
+         */
+        public long percentileMicros(double percentile){
+            long count = requests();
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                    return 1L << i;
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString(){
+            long count = requests();
+            return String.format("%s requests=%d failures=%d mean_us=%d max_us=%d p50_us<=%d p99_us<=%d",
+                    name, count, failures(), count == 0 ? 0 : totalNanos.sum() / count / 1000, maxNanos.get() / 1000,
+                    percentileMicros(50), percentileMicros(99));
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int concurrent;
+    private final long maxPixels;
+    private final Semaphore conversions;
+    private final LongAdder rejected = new LongAdder();
+    private final Latency encode = new Latency("encode");
+    private final Latency decode = new Latency("decode");
+
+    /**
+     * Start the service on the loopback address, converting images of at most DEFAULT_MAX_PIXELS pixels
+     * @param port (int) - Port of the service, 0 to use any free port
+     * @param concurrent (int) - Largest number of conversions running at the same time
+     * @param virtual (boolean) - Run the requests on virtual threads when the JVM supports them
+     * @throws AssertionError if concurrent is not positive
+     */
+    public QOIServer(int port, int concurrent, boolean virtual){
+        this(port, concurrent, virtual, DEFAULT_MAX_PIXELS);
+    }
+
+    /**
+     * Start the service on the loopback address
+     * @param port (int) - Port of the service, 0 to use any free port
+     * @param concurrent (int) - Largest number of conversions running at the same time
+     * @param virtual (boolean) - Run the requests on virtual threads when the JVM supports them
+     * @param maxPixels (long) - Largest number of pixels of a converted image
+     * @throws AssertionError if concurrent or maxPixels is not positive
+     */
+    public QOIServer(int port, int concurrent, boolean virtual, long maxPixels){
+        assert port >= 0 && concurrent > 0 && maxPixels > 0;
+        server = listen(port);
+        this.concurrent = concurrent;
+        this.maxPixels = maxPixels;
+        conversions = new Semaphore(concurrent);
+        // twice as many platform threads as conversions, so that the requests over the limit are rejected right away
+        executor = QOIBatch.newExecutor(2 * concurrent, virtual);
+        server.setExecutor(executor);
+        server.createContext("/encode", exchange -> convert(exchange, encode, true));
+        server.createContext("/decode", exchange -> convert(exchange, decode, false));
+        server.createContext("/metrics", this::metrics);
+        server.start();
+    }
+
+    /**
+     * Entry point of the service mode, runs until the program is stopped
+     * @param args (String[]) - optional port, number of conversions running at the same time
+     *             (number of processors by default), "virtual" to run the requests on virtual threads
+     *             and largest number of pixels of a converted image (DEFAULT_MAX_PIXELS by default)
+     */
+    public static void main(String[] args){
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int concurrent = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        boolean virtual = args.length > 2 && args[2].equals("virtual");
+        long maxPixels = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_MAX_PIXELS;
+        var server = new QOIServer(port, concurrent, virtual, maxPixels);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.printf("Listening on http://localhost:%d, press Ctrl+C to stop%n", server.port());
+    }
+
+    /**
+     * @return (int) - Port the service listens on
+     */
+    public int port(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Counters of the service, as served by GET /metrics
+     * @return (String) - One line per endpoint, and the number of rejected requests
+     */
+    public String metrics(){
+        return encode + "\n" + decode + "\n" + String.format("rejected=%d running=%d%n",
+                rejected.sum(), concurrent - conversions.availablePermits());
+    }
+
+    /**
+     * Stop the service, the running requests have one second to finish
+     */
+    @Override
+    public void close(){
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    // ==================================================================================
+    // ================================ ENDPOINT METHODS ================================
+    // ==================================================================================
+
+    // POST /encode and POST /decode
+    private void convert(HttpExchange exchange, Latency latency, boolean toQoi) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "Use POST");
+                return;
+            }
+            if (!conversions.tryAcquire()) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, "Too many conversions running");
+                return;
+            }
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                // the whole image is decoded before the status is sent, so that invalid inputs get a 400
+                Helper.Image image;
+                try {
+                    image = toQoi ? Helper.readImage(exchange.getRequestBody(), maxPixels)
+                            : readQoi(exchange.getRequestBody(), maxPixels);
+                } catch (Helper.ImageTooLargeException e) {
+                    send(exchange, 413, e.getMessage());
+                    return;
+                } catch (RuntimeException | AssertionError e) {
+                    send(exchange, 400, "Invalid image : " + e.getMessage());
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", toQoi ? "image/qoi" : "image/png");
+                exchange.sendResponseHeaders(200, 0); // chunked
+                // both encoders buffer their output, the response body is written by blocks
+                try (var body = exchange.getResponseBody()) {
+                    if (toQoi) {
+                        QOIStreamEncoder.encode(image, body);
+                    } else {
+                        Helper.writeImage(body, image);
+                    }
+                }
+                failed = false;
+            } finally {
+                conversions.release();
+                latency.record(System.nanoTime() - start, failed);
+            }
+        }
+    }
+
+    // Check the header of a "Quite Ok Image" file before QOIStreamDecoder allocates its rows, then decode it
+    private static Helper.Image readQoi(InputStream body, long maxPixels) throws IOException {
+        byte[] header = body.readNBytes(QOISpecification.HEADER_SIZE);
+        if (header.length < QOISpecification.HEADER_SIZE
+                || !Arrays.equals(header, 0, QOISpecification.QOI_MAGIC.length, QOISpecification.QOI_MAGIC, 0, QOISpecification.QOI_MAGIC.length)
+                || (header[12] != QOISpecification.RGB && header[12] != QOISpecification.RGBA)
+                || (header[13] != QOISpecification.sRGB && header[13] != QOISpecification.ALL))
+            return Helper.fail("Invalid \"Quite Ok Image\" header%n");
+        var fields = ByteBuffer.wrap(header, QOISpecification.QOI_MAGIC.length, 8);
+        long width = Integer.toUnsignedLong(fields.getInt());
+        long height = Integer.toUnsignedLong(fields.getInt());
+        if (width == 0 || height == 0)
+            return Helper.fail("The image is empty%n");
+        if (width * height > maxPixels || width > Integer.MAX_VALUE || height > Integer.MAX_VALUE)
+            throw new Helper.ImageTooLargeException(width, height, maxPixels);
+        return new QOIStreamDecoder(new SequenceInputStream(new ByteArrayInputStream(header), body)).readImage();
+    }
+
+    // GET /metrics
+    private void metrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            send(exchange, 200, metrics());
+        }
+    }
+
+    // Server listening on the loopback address
+    private static HttpServer listen(int port){
+        try {
+            return HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            return Helper.fail("Cannot listen on port %d%n", port);
+        }
+    }
+
+    // Send a short text response
+    private static void send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+}
@@ -77,6 +77,11 @@ public final class QOISpecification {
      */
     public static final byte[] START_PIXEL = new byte[]{0, 0, 0, (byte) 255};
 
+    /**
+     * START_PIXEL packed as an ARGB integer (same layout as Helper.Image::data)
+     */
+    public static final int START_PIXEL_ARGB = 0xFF_00_00_00;
+
     // ==================================================================================
     // ============================ "Quite Ok Image" EOF ================================
     // ==================================================================================
@@ -136,4 +141,14 @@ public final class QOISpecification {
         return (byte) (tmp < 0 ? tmp + 64 : tmp);
     }
 
+    /**
+     * Hash a given ARGB packed pixel using the hash function specific to "Quite Ok Image" format
+     * @apiNote index = (r * 3 + g * 5 + b * 7 + a * 11) % 64
+     * @param pixel (int) - ARGB pixel to hash
+     * @return (int) - hash of the pixel, same value as hash(byte[]) on the RGBA channels
+     */
+    public static int hash(int pixel){
+        return ((pixel >>> 16 & 0xFF) * 3 + (pixel >>> 8 & 0xFF) * 5 + (pixel & 0xFF) * 7 + (pixel >>> 24) * 11) & 0b11_11_11;
+    }
+
 }
\ No newline at end of file
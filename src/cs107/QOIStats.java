@@ -0,0 +1,190 @@
+package cs107;
+
+import static cs107.QOISpecification.*;
+
+/**
+ * Statistics of the chunks written by QOIPixelEncoder or read by QOIPixelDecoder.
+ * <p>
+ * Collects, for each kind of chunk, the number of chunks and the number of bytes they use,
+ * how often a pixel was found in the index (hit), was not (miss), and replaced another pixel
+ * stored at the same slot of QOISpecification::hash (collision), and the length of the runs.
+ * A slot which still holds its initial value (0) is not counted as a collision.
+ * <p>
+ * Collection is opt-in: an encoder or decoder without statistics only pays one null check per chunk.
+ * An instance is not thread-safe, each encoder or decoder should use its own (see merge).
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIStats {
+
+    /**
+     * Kinds of chunks of the "Quite Ok Image" format
+     */
+    public enum Op {
+        INDEX, DIFF, LUMA, RUN, RGB, RGBA
+    }
+
+    private static final Op[] OPS = Op.values();
+
+    private final long[] chunks = new long[OPS.length];
+    private final long[] bytes = new long[OPS.length];
+    private long indexHits = 0;
+    private long indexMisses = 0;
+    private long indexCollisions = 0;
+    private long runPixels = 0;
+
+    /**
+     * Create empty statistics
+     */
+    public QOIStats(){}
+
+    // ==================================================================================
+    // ================================ RECORDING METHODS ===============================
+    // ==================================================================================
+
+    /**
+     * Record a chunk storing a pixel (every chunk but QOI_OP_RUN)
+     * @param tag (byte) - First byte of the chunk
+     * @param size (int) - Number of bytes of the chunk
+     * @param replaced (int) - ARGB pixel stored in the index slot of the pixel before the chunk
+     * @param pixel (int) - ARGB pixel of the chunk
+     */
+    void pixel(byte tag, int size, int replaced, int pixel){
+        Op op = switch (size) {
+            case 1 -> (tag & 0b11_00_00_00) == QOI_OP_INDEX_TAG ? Op.INDEX : Op.DIFF;
+            case 2 -> Op.LUMA;
+            case 4 -> Op.RGB;
+            default -> Op.RGBA;
+        };
+        chunks[op.ordinal()]++;
+        bytes[op.ordinal()] += size;
+        if (op == Op.INDEX) {
+            indexHits++;
+        } else {
+            indexMisses++;
+            if (replaced != 0 && replaced != pixel) {
+                indexCollisions++;
+            }
+        }
+    }
+
+    /**
+     * Record a QOI_OP_RUN chunk
+     * @param length (int) - Number of pixels of the run
+     */
+    void run(int length){
+        chunks[Op.RUN.ordinal()]++;
+        bytes[Op.RUN.ordinal()]++;
+        runPixels += length;
+    }
+
+    /**
+     * Add the statistics of another encoding or decoding to these ones
+     * @param other (QOIStats) - The statistics to add
+     * @return (QOIStats) - this
+     */
+    public QOIStats merge(QOIStats other){
+        assert other != null;
+        for (int i = 0; i < OPS.length; i++) {
+            chunks[i] += other.chunks[i];
+            bytes[i] += other.bytes[i];
+        }
+        indexHits += other.indexHits;
+        indexMisses += other.indexMisses;
+        indexCollisions += other.indexCollisions;
+        runPixels += other.runPixels;
+        return this;
+    }
+
+    // ==================================================================================
+    // ================================= QUERY METHODS ==================================
+    // ==================================================================================
+
+    /**
+     * @param op (Op) - Kind of chunk
+     * @return (long) - Number of chunks of this kind
+     */
+    public long chunks(Op op){
+        return chunks[op.ordinal()];
+    }
+
+    /**
+     * @param op (Op) - Kind of chunk
+     * @return (long) - Number of bytes used by the chunks of this kind
+     */
+    public long bytes(Op op){
+        return bytes[op.ordinal()];
+    }
+
+    /**
+     * @return (long) - Number of bytes of all the chunks, without header and EOF
+     */
+    public long encodedBytes(){
+        long total = 0;
+        for (long b : bytes) {
+            total += b;
+        }
+        return total;
+    }
+
+    /**
+     * @return (long) - Number of pixels encoded or decoded
+     */
+    public long pixels(){
+        return indexHits + indexMisses + runPixels;
+    }
+
+    /**
+     * @return (long) - Number of pixels found in the index (QOI_OP_INDEX chunks)
+     */
+    public long indexHits(){
+        return indexHits;
+    }
+
+    /**
+     * @return (long) - Number of pixels stored with another chunk than QOI_OP_INDEX or QOI_OP_RUN
+     */
+    public long indexMisses(){
+        return indexMisses;
+    }
+
+    /**
+     * @return (long) - Number of misses which replaced another pixel in the index
+     */
+    public long indexCollisions(){
+        return indexCollisions;
+    }
+
+    /**
+     * @return (double) - Average number of pixels of a QOI_OP_RUN chunk, 0 if there are none
+     */
+    public double averageRunLength(){
+        long runs = chunks(Op.RUN);
+        return runs == 0 ? 0 : (double) runPixels / runs;
+    }
+
+    /**
+     * @return (double) - Average number of bytes per pixel, 0 if there are no pixels
+     */
+    public double bytesPerPixel(){
+        long pixels = pixels();
+        return pixels == 0 ? 0 : (double) encodedBytes() / pixels;
+    }
+
+    /**
+     * Summary of the statistics, one line per kind of chunk
+     * @return (String) - The summary
+     */
+    @Override
+    public String toString(){
+        var builder = new StringBuilder();
+        builder.append(String.format("pixels=%d bytes=%d bytes/pixel=%.3f%n", pixels(), encodedBytes(), bytesPerPixel()));
+        for (Op op : OPS) {
+            builder.append(String.format("%-5s chunks=%d bytes=%d%n", op, chunks(op), bytes(op)));
+        }
+        builder.append(String.format("index hits=%d misses=%d collisions=%d%n", indexHits, indexMisses, indexCollisions));
+        builder.append(String.format("average run=%.2f%n", averageRunLength()));
+        return builder.toString();
+    }
+
+}
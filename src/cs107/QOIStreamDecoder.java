@@ -0,0 +1,246 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * "Quite Ok Image" decoder reading a file from a stream row by row.
+ * The header is parsed as soon as the decoder is created, the rows are decoded as
+ * the bytes arrive through a fixed size buffer, and the EOF is checked after the last row.
+ * The memory used is about one row, whatever the size of the image.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIStreamDecoder implements AutoCloseable {
+
+    /**
+     * Default size of the input buffer
+     */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Receives the decoded rows
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+        /**
+         * @param y (int) - Index of the row in the image
+         * @param row (int[]) - ARGB packed pixels of the row, the array is reused for the next row
+         */
+        void accept(int y, int[] row);
+    }
+
+    private final InputStream input;
+    private final ByteBuffer buffer;
+    private boolean endOfStream = false;
+
+    private final QOIPixelDecoder decoder = new QOIPixelDecoder();
+    private final int width;
+    private final int height;
+    private final byte channels;
+    private final byte colorSpace;
+    private final int[] row;
+    private int rows = 0;
+
+    /**
+     * Create a decoder reading from the given stream, and read the header
+     * @param input (InputStream) - Where to read the "Quite Ok Image" file from
+     * @param bufferSize (int) - Size of the input buffer
+     * @throws AssertionError if input is null or the header is invalid
+     */
+    public QOIStreamDecoder(InputStream input, int bufferSize){
+        assert input != null;
+        assert bufferSize >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        this.input = input;
+        this.buffer = ByteBuffer.allocate(bufferSize).limit(0);
+
+        require(QOISpecification.HEADER_SIZE);
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        buffer.get(header);
+        int[] decoded = QOIDecoder.decodeHeader(header);
+        width = decoded[0];
+        height = decoded[1];
+        channels = (byte) decoded[2];
+        colorSpace = (byte) decoded[3];
+        row = new int[width];
+    }
+
+    /**
+     * Create a decoder reading from the given stream, and read the header
+     * @param input (InputStream) - Where to read the "Quite Ok Image" file from
+     */
+    public QOIStreamDecoder(InputStream input){
+        this(input, BUFFER_SIZE);
+    }
+
+    /**
+     * Create a decoder reading from the given channel, and read the header
+     * @param input (ReadableByteChannel) - Where to read the "Quite Ok Image" file from
+     */
+    public QOIStreamDecoder(ReadableByteChannel input){
+        this(Channels.newInputStream(input), BUFFER_SIZE);
+    }
+
+    // ==================================================================================
+    // ================================= HEADER METHODS =================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * @return (int) - Number of rows decoded so far
+     */
+    public int rows(){
+        return rows;
+    }
+
+    // ==================================================================================
+    // ================================ DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode the next row into a buffer owned by the decoder
+     * @return (int[]) - ARGB packed pixels of the row, reused by the next call,
+     * or null if all the rows were decoded
+     */
+    public int[] readRow(){
+        if (rows == height) {
+            return null;
+        }
+        readRow(row, 0);
+        return row;
+    }
+
+    /**
+     * Decode the next row into the given array
+     * @param output (int[]) - Where to store the pixels
+     * @param offset (int) - Index in output of the first pixel of the row
+     * @throws AssertionError if all the rows were already decoded or the file is corrupted
+     */
+    public void readRow(int[] output, int offset){
+        assert rows < height;
+        assert output != null && offset >= 0 && offset + width <= output.length;
+
+        int filled = decoder.decode(buffer, output, offset, width);
+        while (filled < width) {
+            if (!refill()) {
+                Helper.fail("The \"Quite Ok Image\" stream ends after %d rows out of %d%n", rows, height);
+            }
+            filled += decoder.decode(buffer, output, offset + filled, width - filled);
+        }
+        if (++rows == height) {
+            checkEnd();
+        }
+    }
+
+    /**
+     * Decode all the remaining rows and give them to the consumer one after the other
+     * @param consumer (RowConsumer) - Receives the rows, the row array is reused between calls
+     */
+    public void decode(RowConsumer consumer){
+        assert consumer != null;
+        while (rows < height) {
+            int y = rows;
+            readRow(row, 0);
+            consumer.accept(y, row);
+        }
+    }
+
+    /**
+     * Decode all the remaining rows into a new image
+     * @return (Helper.Image) - The decoded image
+     */
+    public Helper.Image readImage(){
+        int[][] data = new int[height][];
+        decode((y, pixels) -> data[y] = pixels.clone());
+        return Helper.generateImage(data, channels, colorSpace);
+    }
+
+    /**
+     * Close the underlying stream
+     */
+    @Override
+    public void close(){
+        try {
+            input.close();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to close the encoded image%n");
+        }
+    }
+
+    // ==================================================================================
+    // ================================== INPUT METHODS =================================
+    // ==================================================================================
+
+    // Check that the pixels end exactly where the EOF starts, whether the assertions are enabled or not
+    private void checkEnd(){
+        if (decoder.pendingRun() != 0)
+            Helper.fail("The last run of the \"Quite Ok Image\" stream goes past its last row%n");
+        require(QOISpecification.QOI_EOF.length);
+        for (int i = 0; i < QOISpecification.QOI_EOF.length; i++) {
+            byte b = buffer.get();
+            if (b != QOISpecification.QOI_EOF[i])
+                Helper.fail("The \"Quite Ok Image\" stream does not end with the EOF%n");
+        }
+    }
+
+    // Make sure that at least n bytes are available in the buffer
+    private void require(int n){
+        while (buffer.remaining() < n) {
+            if (!refill()) {
+                Helper.fail("The \"Quite Ok Image\" stream is truncated%n");
+            }
+        }
+    }
+
+    // Keep the unread bytes and read as many new bytes as the buffer can hold
+    private boolean refill(){
+        if (endOfStream) {
+            return false;
+        }
+        buffer.compact();
+        int read;
+        try {
+            read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read the encoded image%n");
+        }
+        if (read < 0) {
+            endOfStream = true;
+            read = 0;
+        }
+        buffer.position(buffer.position() + read);
+        buffer.flip();
+        return read > 0;
+    }
+
+}
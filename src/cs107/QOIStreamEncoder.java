@@ -0,0 +1,189 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * "Quite Ok Image" encoder writing a file to a stream row by row.
+ * The header is written as soon as the encoder is created, the rows are encoded as they
+ * are given and flushed through a fixed size buffer, the EOF is written by close.
+ * The memory used does not depend on the size of the image.
+ * The written bytes are the same as QOIEncoder::qoiFile.
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIStreamEncoder implements AutoCloseable {
+
+    /**
+     * Default size of the output buffer
+     */
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    private final OutputStream output;
+    private final byte[] buffer;
+    private int position = 0;
+
+    private final QOIPixelEncoder encoder = new QOIPixelEncoder();
+    private final int width;
+    private final int height;
+    private int rows = 0;
+    private boolean finished = false;
+
+    /**
+     * Create an encoder writing to the given stream, and write the header
+     * @param output (OutputStream) - Where to write the "Quite Ok Image" file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param bufferSize (int) - Size of the output buffer
+     * @throws AssertionError if output is null or one of the parameters is invalid
+     */
+    public QOIStreamEncoder(OutputStream output, int width, int height, byte channels, byte colorSpace, int bufferSize){
+        assert output != null;
+        assert width > 0 && height > 0;
+        assert bufferSize >= QOISpecification.HEADER_SIZE + QOIPixelEncoder.MAX_CHUNK_SIZE + 1;
+        this.output = output;
+        this.width = width;
+        this.height = height;
+        this.buffer = new byte[bufferSize];
+        byte[] header = QOIEncoder.qoiHeader(width, height, channels, colorSpace);
+        System.arraycopy(header, 0, buffer, 0, header.length);
+        position = header.length;
+    }
+
+    /**
+     * Create an encoder writing to the given stream, and write the header
+     * @param output (OutputStream) - Where to write the "Quite Ok Image" file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     */
+    public QOIStreamEncoder(OutputStream output, int width, int height, byte channels, byte colorSpace){
+        this(output, width, height, channels, colorSpace, BUFFER_SIZE);
+    }
+
+    /**
+     * Create an encoder writing to the given channel, and write the header
+     * @param output (WritableByteChannel) - Where to write the "Quite Ok Image" file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     */
+    public QOIStreamEncoder(WritableByteChannel output, int width, int height, byte channels, byte colorSpace){
+        this(Channels.newOutputStream(output), width, height, channels, colorSpace, BUFFER_SIZE);
+    }
+
+    /**
+     * Encode an image and write the "Quite Ok Image" file to the given stream.
+     * The stream is not closed
+     * @param image (Helper.Image) - Image to encode
+     * @param output (OutputStream) - Where to write the file
+     */
+    public static void encode(Helper.Image image, OutputStream output){
+        assert image != null;
+        int[][] data = image.data();
+        var encoder = new QOIStreamEncoder(output, data[0].length, data.length, image.channels(), image.color_space());
+        for (int[] row : data) {
+            encoder.writeRow(row);
+        }
+        encoder.finish();
+    }
+
+    // ==================================================================================
+    // ================================ ENCODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Encode the next row of the image
+     * @param row (int[]) - ARGB packed pixels of the row, its length is the width of the image
+     * @throws AssertionError if the row is invalid or all the rows were already written
+     */
+    public void writeRow(int[] row){
+        assert row != null && row.length == width;
+        writeRow(row, 0);
+    }
+
+    /**
+     * Encode the next row of the image
+     * @param pixels (int[]) - ARGB packed pixels
+     * @param offset (int) - Index in pixels of the first pixel of the row
+     * @throws AssertionError if the row is invalid or all the rows were already written
+     */
+    public void writeRow(int[] pixels, int offset){
+        assert !finished;
+        assert rows < height;
+        assert pixels != null && offset >= 0 && offset + width <= pixels.length;
+
+        int remaining = width;
+        while (remaining > 0) {
+            // a slice of n pixels never takes more than 5 * n + 1 bytes (pending run)
+            int n = Math.min(remaining, (buffer.length - position - 1) / QOIPixelEncoder.MAX_CHUNK_SIZE);
+            if (n <= 0) {
+                flushBuffer();
+                continue;
+            }
+            position = encoder.encode(pixels, offset, n, buffer, position);
+            offset += n;
+            remaining -= n;
+        }
+        rows++;
+    }
+
+    /**
+     * Write the last run and the EOF, and flush the stream without closing it
+     * @throws AssertionError if not all the rows were written
+     */
+    public void finish(){
+        if (finished) {
+            return;
+        }
+        assert rows == height;
+        if (buffer.length - position < 1 + QOISpecification.QOI_EOF.length) {
+            flushBuffer();
+        }
+        position = encoder.finish(buffer, position);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, buffer, position, QOISpecification.QOI_EOF.length);
+        position += QOISpecification.QOI_EOF.length;
+        flushBuffer();
+        try {
+            output.flush();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write the encoded image%n");
+        }
+        finished = true;
+    }
+
+    /**
+     * Finish the file and close the underlying stream
+     */
+    @Override
+    public void close(){
+        try (output) {
+            finish();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to close the encoded image%n");
+        }
+    }
+
+    /**
+     * @return (int) - Number of rows written so far
+     */
+    public int rows(){
+        return rows;
+    }
+
+    private void flushBuffer(){
+        try {
+            output.write(buffer, 0, position);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write the encoded image%n");
+        }
+        position = 0;
+    }
+
+}
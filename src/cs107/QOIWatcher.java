@@ -0,0 +1,248 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Daemon converting the images of a directory tree as soon as they are written,
+ * with the same conversions as QOIBatch (".png" to ".qoi" and ".qoi" to ".png").
+ * <p>
+ * The tree is watched with a WatchService. A file is converted once it has not changed for the
+ * debounce delay and its size is the same as at its last change, so files which are still being
+ * written are left alone. The conversions run on a pool of workers which stays alive, and so does
+ * the JIT compiled code of the encoder and the decoder.
+ * Files which are already in the tree when the daemon starts are converted if their converted file
+ * is missing or older than them.
+ * @apiNote Run with : java cs107.Main watch input_dir output_dir [threads] [debounce in ms]
+ * @version 1.4
+ * @since 1.4
+ */
+public final class QOIWatcher implements AutoCloseable {
+
+    /**
+     * Default time a file must stay unchanged before it is converted
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 100;
+
+    // Last change seen for a file which is not converted yet
+    private record Change(long time, long size){}
+
+    private final Path input;
+    private final Path output;
+    private final long debounceNanos;
+    private final WatchService watcher;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final Thread loop;
+    private final Map<Path, Change> pending = new ConcurrentHashMap<>();
+    private final Set<Path> running = ConcurrentHashMap.newKeySet();
+    private final QOIBatch.Totals totals = new QOIBatch.Totals();
+    private final long start = System.nanoTime();
+
+    /**
+     * Start watching a directory tree
+     * @param input (Path) - Directory where the images are written
+     * @param output (Path) - Directory where the converted images are written, created if needed
+     * @param threads (int) - Number of files converted at the same time
+     * @param debounceMillis (long) - Time a file must stay unchanged before it is converted
+     * @throws AssertionError if input is not a directory or the numbers are not positive
+     * @throws RuntimeException if output is input or contains it
+     */
+    public QOIWatcher(Path input, Path output, int threads, long debounceMillis){
+        assert input != null && output != null && Files.isDirectory(input);
+        assert threads > 0 && debounceMillis > 0;
+        QOIBatch.checkDirectories(input, output);
+        this.input = input.toAbsolutePath().normalize();
+        this.output = output.toAbsolutePath().normalize();
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        watcher = newWatchService(this.input);
+        workers = QOIBatch.newExecutor(threads, false);
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "qoi-watch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        register(this.input);
+        long period = Math.max(1, debounceMillis / 2);
+        timer.scheduleWithFixedDelay(this::flush, period, period, TimeUnit.MILLISECONDS);
+        loop = new Thread(this::watch, "qoi-watch");
+        loop.start();
+    }
+
+    /**
+     * Entry point of the watch mode, runs until the program is stopped
+     * @param args (String[]) - input directory, output directory, optional number of workers
+     *             (number of processors by default) and optional debounce delay in milliseconds
+     */
+    public static void main(String[] args){
+        if (args.length < 2) {
+            System.err.println("Usage : watch input_dir output_dir [threads] [debounce in ms]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long debounce = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_DEBOUNCE_MILLIS;
+        var watcher = new QOIWatcher(Path.of(args[0]), Path.of(args[1]), threads, debounce);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            watcher.close();
+            System.out.println(watcher.report());
+        }));
+        System.out.printf("Watching \"%s\", press Ctrl+C to stop%n", args[0]);
+    }
+
+    /**
+     * @return (QOIBatch.Report) - Files converted since the daemon started
+     */
+    public QOIBatch.Report report(){
+        return totals.report(System.nanoTime() - start);
+    }
+
+    /**
+     * Stop watching, and wait for the conversions which are running
+     */
+    @Override
+    public void close(){
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to stop watching : \"%s\"%n", input);
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+        try {
+            loop.join();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ==================================================================================
+    // ================================= WATCH METHODS ==================================
+    // ==================================================================================
+
+    // Wait for the changes of the tree, until the watch service is closed
+    private void watch(){
+        try {
+            while (true) {
+                var key = watcher.take();
+                var directory = (Path) key.watchable();
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        register(input); // some changes were lost, look at the whole tree again
+                        continue;
+                    }
+                    var file = directory.resolve((Path) event.context());
+                    if (Files.isDirectory(file)) {
+                        if (event.kind() == ENTRY_CREATE)
+                            register(file);
+                    } else {
+                        changed(file);
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the daemon is stopped
+        }
+    }
+
+    // Watch a directory and its sub-directories, and look at the files already there
+    private void register(Path directory){
+        if (directory.startsWith(output))
+            return;
+        try (var walk = Files.walk(directory)) {
+            for (var path : (Iterable<Path>) walk::iterator) {
+                if (path.startsWith(output))
+                    continue;
+                if (Files.isDirectory(path)) {
+                    path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+                } else if (QOIBatch.target(path) != null && !upToDate(path)) {
+                    changed(path);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.printf("Cannot watch \"%s\" : %s%n", directory, e.getMessage());
+        }
+    }
+
+    // Remember the last change of a file to convert
+    private void changed(Path file){
+        if (QOIBatch.target(file) == null || file.startsWith(output))
+            return;
+        pending.put(file, new Change(System.nanoTime(), size(file)));
+    }
+
+    // Convert the files which did not change during the debounce delay
+    private void flush(){
+        long now = System.nanoTime();
+        for (var entry : pending.entrySet()) {
+            var file = entry.getKey();
+            var change = entry.getValue();
+            if (now - change.time() < debounceNanos || running.contains(file))
+                continue;
+            long size = size(file);
+            if (size < 0) {
+                pending.remove(file, change); // deleted before being converted
+            } else if (size != change.size()) {
+                pending.replace(file, change, new Change(now, size)); // still being written
+            } else if (pending.remove(file, change)) {
+                running.add(file);
+                workers.execute(() -> convert(file));
+            }
+        }
+    }
+
+    // Convert one file, the failures are reported and the daemon goes on
+    private void convert(Path file){
+        try {
+            QOIBatch.convert(file, QOIBatch.destination(input, output, file), totals);
+        } catch (RuntimeException | AssertionError e) {
+            totals.failed(file, e);
+        } finally {
+            running.remove(file);
+        }
+    }
+
+    // Check if the converted file is newer than the file
+    private boolean upToDate(Path file){
+        try {
+            var destination = QOIBatch.destination(input, output, file);
+            return Files.exists(destination)
+                    && Files.getLastModifiedTime(destination).compareTo(Files.getLastModifiedTime(file)) >= 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Size of a file, -1 if it doesn't exist anymore
+    private static long size(Path file){
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static WatchService newWatchService(Path directory){
+        try {
+            return directory.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to watch : \"%s\"%n", directory);
+        }
+    }
+
+}